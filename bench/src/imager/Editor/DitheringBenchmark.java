@@ -0,0 +1,152 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time per image for each dithering method, resize and the luminance pass, over image
+ * sizes from VGA to 24 MP and the source types the readers special-case.
+ *
+ * Run with {@code ant bench}; narrow it with e.g.
+ * {@code ant bench -Dbench.args="-p size=VGA,FHD DitheringBenchmark.threshold"}.
+ * {@code -p vector=false} measures the scalar loops instead of the Vector API kernels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules=jdk.incubator.vector"})
+public class DitheringBenchmark {
+
+    @Param({"VGA", "HD", "FHD", "12MP", "24MP"})
+    public String size;
+
+    @Param({"INT_RGB", "INT_ARGB", "3BYTE_BGR", "BYTE_GRAY"})
+    public String type;
+
+    @Param({"true", "false"})
+    public boolean vector;
+
+    private BufferedImage src;
+    private LumaReader reader;
+    private int[] lum;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int w, h;
+        switch (size) {
+            case "VGA" -> { w = 640; h = 480; }
+            case "HD" -> { w = 1280; h = 720; }
+            case "FHD" -> { w = 1920; h = 1080; }
+            case "12MP" -> { w = 4000; h = 3000; }
+            case "24MP" -> { w = 6000; h = 4000; }
+            default -> throw new IllegalArgumentException("unknown size " + size);
+        }
+        int imageType = switch (type) {
+            case "INT_RGB" -> BufferedImage.TYPE_INT_RGB;
+            case "INT_ARGB" -> BufferedImage.TYPE_INT_ARGB;
+            case "3BYTE_BGR" -> BufferedImage.TYPE_3BYTE_BGR;
+            case "BYTE_GRAY" -> BufferedImage.TYPE_BYTE_GRAY;
+            default -> throw new IllegalArgumentException("unknown type " + type);
+        };
+
+        // gradient plus noise, so thresholds and error diffusion see every level
+        BufferedImage rgb = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] px = ((DataBufferInt) rgb.getRaster().getDataBuffer()).getData();
+        Random rnd = new Random(42);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int base = (x * 255 / w + y * 255 / h) / 2;
+                int r = clamp(base + rnd.nextInt(64) - 32);
+                int g = clamp(base + rnd.nextInt(64) - 32);
+                int b = clamp(255 - base + rnd.nextInt(64) - 32);
+                px[y * w + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        if (imageType == BufferedImage.TYPE_INT_RGB) {
+            src = rgb;
+        } else {
+            src = new BufferedImage(w, h, imageType);
+            src.getGraphics().drawImage(rgb, 0, 0, null);
+        }
+        reader = LumaReader.of(src);
+        lum = new int[w];
+        Dithering.setVectorized(vector);
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : Math.min(v, 255);
+    }
+
+    @Benchmark
+    public BufferedImage threshold() {
+        return Dithering.threshold(src, 128);
+    }
+
+    @Benchmark
+    public BufferedImage randomDither() {
+        return Dithering.randomDither(src);
+    }
+
+    @Benchmark
+    public BufferedImage orderedBayer() {
+        return Dithering.orderedBayer(src);
+    }
+
+    @Benchmark
+    public BufferedImage orderedBlueNoise() {
+        return Dithering.orderedDither(src, ThresholdMap.blueNoise(64));
+    }
+
+    @Benchmark
+    public BufferedImage orderedAvoidCluster() {
+        return Dithering.orderedAvoidCluster(src);
+    }
+
+    @Benchmark
+    public BufferedImage floydSteinberg() {
+        return Dithering.floydSteinberg(src);
+    }
+
+    @Benchmark
+    public BufferedImage atkinson() {
+        return Dithering.errorDiffusion(src, DiffusionKernel.ATKINSON, false);
+    }
+
+    @Benchmark
+    public BufferedImage jarvis() {
+        return Dithering.errorDiffusion(src, DiffusionKernel.JARVIS, false);
+    }
+
+    @Benchmark
+    public BufferedImage resize() {
+        return Dithering.resize(src, 0.5);
+    }
+
+    /** The luminance pass every method starts with, over the whole image. */
+    @Benchmark
+    public int luminance() {
+        int acc = 0;
+        for (int y = 0; y < src.getHeight(); y++) {
+            reader.readRow(y, lum);
+            acc += lum[y % lum.length];
+        }
+        return acc;
+    }
+}
@@ -0,0 +1,431 @@
+package imager;
+
+import imager.Editor.DiffusionKernel;
+import imager.Editor.Dithering;
+import imager.Editor.Palette;
+import imager.Editor.Resampler;
+import imager.Editor.ThresholdMap;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Flag-driven, non-interactive mode of {@link Imager}: dithers every matching still image in
+ * one JVM on a pool of workers and prints per-file and total throughput.
+ *
+ * Exit codes: 0 when every file succeeded, 1 when at least one file failed, 2 for bad
+ * arguments or when no input matched.
+ */
+final class BatchCli {
+
+    static final int EXIT_OK = 0;
+    static final int EXIT_FILE_FAILED = 1;
+    static final int EXIT_USAGE = 2;
+
+    private static final Set<String> IMAGE_EXTENSIONS = Set.of("png", "jpg", "jpeg", "bmp", "gif", "wbmp", "tif", "tiff");
+
+    private static final String USAGE = String.join("\n",
+            "Usage: imager [options] <file|directory|glob>...",
+            "  -m, --method NAME     threshold | random | bayer | avoid-cluster | fs (or 1-5), default fs;",
+            "                        an error-diffusion kernel name also selects method 5 with that kernel",
+            "  -s, --scale X         resize factor before dithering, default 1",
+            "  -t, --threshold N     threshold for the threshold method, 0-255, default 128",
+            "  -o, --out DIR         output directory, default next to each input",
+            "  -j, --jobs N          files processed at once, default number of CPUs",
+            "  -f, --filter NAME     resize filter: box | bilinear | bicubic | lanczos3, default box",
+            "  -M, --map NAME        threshold map of the ordered methods: bayer2 | bayer4 | bayer8 | bayer16 |",
+            "                        blue16 | blue32 | blue64 | a map file (image or rows of ranks), default bayer4",
+            "  -k, --kernel NAME     error-diffusion kernel: fs | atkinson | jarvis | stucki | sierra | sierra-lite,",
+            "                        default fs",
+            "      --serpentine      alternate the scan direction of error-diffusion rows",
+            "      --seed N          seed of the random and avoid-cluster noise, default 0",
+            "  -p, --palette FILE    dither to a color palette (hex or GIMP .gpl) instead of black/white",
+            "  -z, --png-level N     PNG deflate level, 0 (fastest) to 9 (smallest), default 4",
+            "      --strips          read, dither and write in horizontal strips (scale 1 only); chosen",
+            "                        automatically for images that would not fit in the heap",
+            "  -r, --recursive       descend into subdirectories of directory inputs",
+            "  -h, --help            show this help",
+            "Globs (e.g. 'shots/*.png', 'in/**.jpg') are expanded here when quoted.",
+            "Exit status: 0 all files ok, 1 some files failed, 2 bad arguments, no inputs, or two inputs",
+            "that would be written to the same output file.");
+
+    private int method = 5;
+    private double scale = 1.0;
+    private int threshold = 128;
+    private File outDir;
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    private Resampler.Filter filter = Resampler.Filter.BOX;
+    private ThresholdMap map = ThresholdMap.bayer(4);
+    private DiffusionKernel kernel = DiffusionKernel.FLOYD_STEINBERG;
+    private boolean serpentine;
+    private long seed;
+    private Palette palette;
+    private boolean recursive;
+    private boolean strips;
+    private int pngLevel = 4;
+    private int workers = 1;
+    private final List<String> inputs = new ArrayList<>();
+
+    private record Result(File input, File output, int width, int height, long nanos, String error) {
+        double megapixels() {
+            return (double) width * height / 1e6;
+        }
+    }
+
+    private BatchCli() {
+    }
+
+    /** Runs batch mode and returns the process exit code. */
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        BatchCli cli = new BatchCli();
+        try {
+            if (!cli.parse(args)) {
+                out.println(USAGE);
+                return EXIT_OK;
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            err.println("imager: " + e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        List<File> files;
+        try {
+            files = cli.expandInputs();
+        } catch (IOException e) {
+            err.println("imager: " + e.getMessage());
+            return EXIT_USAGE;
+        }
+        if (files.isEmpty()) {
+            err.println("imager: no input images matched");
+            return EXIT_USAGE;
+        }
+        String collision = cli.outputCollision(files);
+        if (collision != null) {
+            err.println("imager: " + collision);
+            return EXIT_USAGE;
+        }
+        if (cli.outDir != null && !cli.outDir.isDirectory() && !cli.outDir.mkdirs()) {
+            err.println("imager: cannot create output directory " + cli.outDir);
+            return EXIT_USAGE;
+        }
+        return cli.process(files, out, err);
+    }
+
+    /** Returns false when only help was requested. */
+    private boolean parse(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            switch (a) {
+                case "-h", "--help" -> {
+                    return false;
+                }
+                case "-m", "--method" -> {
+                    String v = value(args, ++i, a);
+                    DiffusionKernel k = kernelOrNull(v);
+                    if (k != null) {
+                        method = 5;
+                        kernel = k;
+                    } else {
+                        method = parseMethod(v);
+                    }
+                }
+                case "-k", "--kernel" -> {
+                    String v = value(args, ++i, a);
+                    kernel = kernelOrNull(v);
+                    if (kernel == null) throw new IllegalArgumentException("unknown kernel " + v);
+                }
+                case "--serpentine" -> serpentine = true;
+                case "-s", "--scale" -> {
+                    scale = parseNumber(value(args, ++i, a), a);
+                    if (!(scale > 0)) throw new IllegalArgumentException("scale must be > 0");
+                }
+                case "-t", "--threshold" -> {
+                    threshold = (int) parseNumber(value(args, ++i, a), a);
+                    if (threshold < 0 || threshold > 255) throw new IllegalArgumentException("threshold must be 0-255");
+                }
+                case "-o", "--out" -> outDir = new File(value(args, ++i, a));
+                case "-j", "--jobs" -> {
+                    jobs = (int) parseNumber(value(args, ++i, a), a);
+                    if (jobs < 1) throw new IllegalArgumentException("jobs must be >= 1");
+                }
+                case "-f", "--filter" -> filter = parseFilter(value(args, ++i, a));
+                case "-M", "--map" -> {
+                    String spec = value(args, ++i, a);
+                    try {
+                        map = ThresholdMap.parse(spec);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("bad map " + spec + ": " + e.getMessage());
+                    }
+                }
+                case "--seed" -> {
+                    String v = value(args, ++i, a);
+                    try {
+                        seed = Long.parseLong(v);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("bad value for " + a + ": " + v);
+                    }
+                }
+                case "-p", "--palette" -> palette = Palette.load(value(args, ++i, a));
+                case "-z", "--png-level" -> {
+                    pngLevel = (int) parseNumber(value(args, ++i, a), a);
+                    if (pngLevel < 0 || pngLevel > 9) throw new IllegalArgumentException("png level must be 0-9");
+                }
+                case "--strips" -> strips = true;
+                case "-r", "--recursive" -> recursive = true;
+                default -> {
+                    if (a.startsWith("-") && a.length() > 1) throw new IllegalArgumentException("unknown option " + a);
+                    inputs.add(a);
+                }
+            }
+        }
+        if (inputs.isEmpty()) throw new IllegalArgumentException("no inputs given");
+        if (strips && scale != 1.0) throw new IllegalArgumentException("--strips cannot resize; use scale 1");
+        return true;
+    }
+
+    private static String value(String[] args, int i, String flag) {
+        if (i >= args.length) throw new IllegalArgumentException(flag + " needs a value");
+        return args[i];
+    }
+
+    private static double parseNumber(String s, String flag) {
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad value for " + flag + ": " + s);
+        }
+    }
+
+    private static int parseMethod(String s) {
+        return switch (s.toLowerCase(Locale.ROOT)) {
+            case "1", "threshold" -> 1;
+            case "2", "random" -> 2;
+            case "3", "bayer", "ordered", "ordered-bayer" -> 3;
+            case "4", "avoid-cluster", "ordered-avoid-cluster" -> 4;
+            case "5", "fs", "floyd-steinberg" -> 5;
+            default -> throw new IllegalArgumentException("unknown method " + s);
+        };
+    }
+
+    private static DiffusionKernel kernelOrNull(String s) {
+        try {
+            return DiffusionKernel.parse(s);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static Resampler.Filter parseFilter(String s) {
+        try {
+            return Resampler.Filter.valueOf(s.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown filter " + s);
+        }
+    }
+
+    /** Files, directory contents and glob matches, in argument order without duplicates. */
+    private List<File> expandInputs() throws IOException {
+        Set<File> found = new LinkedHashSet<>();
+        for (String in : inputs) {
+            int glob = firstGlobChar(in);
+            if (glob >= 0) {
+                int sep = Math.max(in.lastIndexOf('/', glob), in.lastIndexOf(File.separatorChar, glob));
+                Path base = Path.of(sep >= 0 ? in.substring(0, sep + 1) : ".");
+                String pattern = in.substring(sep + 1);
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+                boolean deep = pattern.contains("**") || pattern.indexOf('/') >= 0;
+                if (!Files.isDirectory(base)) continue;
+                try (Stream<Path> walk = Files.walk(base, deep ? Integer.MAX_VALUE : 1)) {
+                    walk.filter(Files::isRegularFile)
+                            .filter(p -> matcher.matches(base.relativize(p)))
+                            .sorted()
+                            .forEach(p -> found.add(p.toFile()));
+                }
+            } else {
+                File f = new File(in);
+                if (f.isDirectory()) {
+                    try (Stream<Path> walk = Files.walk(f.toPath(), recursive ? Integer.MAX_VALUE : 1)) {
+                        walk.filter(Files::isRegularFile)
+                                .filter(p -> isImage(p.getFileName().toString()))
+                                .sorted()
+                                .forEach(p -> found.add(p.toFile()));
+                    }
+                } else if (f.isFile()) {
+                    found.add(f);
+                } else {
+                    throw new IOException("no such file or directory: " + in);
+                }
+            }
+        }
+        // the same file named two ways (a/x.png and ./a/x.png) is processed once
+        Map<Path, File> unique = new LinkedHashMap<>();
+        for (File f : found) unique.putIfAbsent(f.getAbsoluteFile().toPath().normalize(), f);
+        return new ArrayList<>(unique.values());
+    }
+
+    private static int firstGlobChar(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if ("*?[{".indexOf(s.charAt(i)) >= 0) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isImage(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && IMAGE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private int process(List<File> files, PrintStream out, PrintStream err) {
+        workers = Math.min(jobs, files.size());
+        // split the CPUs between files in flight rather than oversubscribing each image's bands
+        Dithering.setParallelism(Math.max(1, Runtime.getRuntime().availableProcessors() / workers));
+        Dithering.setResampleFilter(filter);
+        Dithering.setPalette(palette);
+        Dithering.setOrderedMap(map);
+        Dithering.setSeed(seed);
+        Dithering.setDiffusionKernel(kernel);
+        Dithering.setSerpentine(serpentine);
+        Dithering.setPngCompression(pngLevel);
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<Result>> pending = new ArrayList<>();
+        for (File f : files) {
+            pending.add(pool.submit(() -> {
+                Result r = processOne(f);
+                report(r, out, err);
+                return r;
+            }));
+        }
+        pool.shutdown();
+
+        int ok = 0, failed = 0;
+        double mp = 0;
+        for (Future<Result> fut : pending) {
+            Result r;
+            try {
+                r = fut.get();
+            } catch (Exception e) {
+                failed++;
+                continue;
+            }
+            if (r.error() == null) {
+                ok++;
+                mp += r.megapixels();
+            } else {
+                failed++;
+            }
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        out.printf(Locale.ROOT, "%d ok, %d failed in %.2f s with %d workers: %.2f images/s, %.2f MP/s%n",
+                ok, failed, secs, workers, ok / secs, mp / secs);
+        return failed == 0 ? EXIT_OK : EXIT_FILE_FAILED;
+    }
+
+    private Result processOne(File input) {
+        long t0 = System.nanoTime();
+        try {
+            Dimension size = Dithering.imageSize(input);
+            boolean inStrips = scale == 1.0 && (strips || !Dithering.fitsInHeap(size.width, size.height, workers));
+            // when shrinking, the reader skips rows and columns and the resampler does the rest
+            BufferedImage src = inStrips ? null : Dithering.loadImage(input.getPath(), scale);
+            if (!inStrips && src == null) throw new IOException("not a readable image");
+            Dimension target = Dithering.scaledSize(size.width, size.height, scale);
+            BufferedImage img = null;
+            if (!inStrips) {
+                img = (palette != null)
+                        ? Dithering.ditherToPalette(scale != 1.0 ? Dithering.resize(src, target.width, target.height) : src,
+                                method, palette)
+                        : Dithering.resizeAndDither(src, target.width, target.height, method, threshold);
+            }
+            File output = outputFor(input);
+            if (inStrips) {
+                Dithering.ditherInStrips(input, output, method, threshold);
+            } else {
+                Dithering.writePng(img, output);
+            }
+            return new Result(input, output, size.width, size.height, System.nanoTime() - t0, null);
+        } catch (Exception | OutOfMemoryError e) {
+            String msg = (e.getMessage() != null) ? e.getMessage() : e.toString();
+            return new Result(input, null, 0, 0, System.nanoTime() - t0, msg);
+        }
+    }
+
+    /** {@code <dir>/<name>_<tag>.png}, where dir is the output directory or else the input's own. */
+    private File outputFor(File input) {
+        String tag;
+        if (palette != null) {
+            tag = (method == 1 ? "nearest" : method <= 4 ? "orderedBayer" : diffusionTag()) + palette.size() + "colors";
+        } else {
+            tag = switch (method) {
+                case 1 -> "threshold" + threshold;
+                case 2 -> "random";
+                case 3 -> "orderedBayer";
+                case 4 -> "orderedAvoidCluster";
+                default -> diffusionTag();
+            };
+        }
+        boolean ordered = method == 3 || method == 4 || (palette != null && method == 2);
+        if (ordered && !map.name().equals("bayer4")) tag = tag + "_" + map.name();
+        if (method == 5 && serpentine) tag = tag + "_serpentine";
+        if (scale != 1.0) tag = tag + "_resized_" + ((int) Math.round(scale * 100)) + "pct";
+
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        String base = (dot >= 0) ? name.substring(0, dot) : name;
+        File dir = (outDir != null) ? outDir : input.getAbsoluteFile().getParentFile();
+        return new File(dir, base + "_" + tag + ".png");
+    }
+
+    /**
+     * Two inputs that map to one output file (x.png from two directories with -o, or x.png and
+     * x.jpg side by side) would be written by two workers at once; the first such pair is
+     * returned as a message, or null when every output is distinct.
+     */
+    private String outputCollision(List<File> files) {
+        Map<Path, File> seen = new HashMap<>();
+        for (File f : files) {
+            Path out = outputFor(f).getAbsoluteFile().toPath().normalize();
+            File other = seen.putIfAbsent(out, f);
+            if (other != null) {
+                return other + " and " + f + " would both be written to " + out;
+            }
+        }
+        return null;
+    }
+
+    /** "floydSteinberg" as before, otherwise the kernel's label. */
+    private String diffusionTag() {
+        return kernel == DiffusionKernel.FLOYD_STEINBERG ? "floydSteinberg" : kernel.label();
+    }
+
+    private static void report(Result r, PrintStream out, PrintStream err) {
+        double secs = r.nanos() / 1e9;
+        if (r.error() == null) {
+            out.printf(Locale.ROOT, "ok    %s -> %s (%dx%d, %.0f ms, %.2f MP/s)%n", r.input(), r.output(),
+                    r.width(), r.height(), secs * 1000, r.megapixels() / secs);
+        } else {
+            err.printf(Locale.ROOT, "FAIL  %s: %s (%.0f ms)%n", r.input(), r.error(), secs * 1000);
+        }
+    }
+}
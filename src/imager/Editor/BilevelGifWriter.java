@@ -0,0 +1,258 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Animated GIF encoder for black/white frames.
+ *
+ * Every frame shares a global table of black, white and a transparent slot, so no frame is
+ * re-quantized and the LZW code size stays at the GIF minimum of 2 bits. After the first
+ * frame only the bounding rectangle of pixels that changed is written, with unchanged pixels
+ * inside it marked transparent unless much of the rectangle changed, and frames are left in
+ * place (disposal "do not dispose").
+ * A pixel is white when its luminance is at least 128.
+ */
+public class BilevelGifWriter implements GifFrameWriter {
+
+    private static final int BLACK = 0;
+    private static final int WHITE = 1;
+    private static final int TRANSPARENT = 2;
+
+    /** GIF requires at least 2 bits even when only two colors are used. */
+    private static final int MIN_CODE_SIZE = 2;
+
+    private final OutputStream out;
+    private final int loopCount;
+    private int width = -1, height = -1;
+    private byte[] canvas;      // what a viewer shows after the last frame
+    private byte[] frame;       // current frame as palette indices
+    private final LzwEncoder lzw = new LzwEncoder();
+    private int frames;
+
+    public BilevelGifWriter(String outPath, int loopCount) throws IOException {
+        this.out = new BufferedOutputStream(new FileOutputStream(outPath), 1 << 16);
+        this.loopCount = (loopCount < 0) ? 0 : loopCount;
+    }
+
+    @Override
+    public void writeFrame(BufferedImage img, int delayCs) throws IOException {
+        if (canvas == null) {
+            width = img.getWidth();
+            height = img.getHeight();
+            canvas = new byte[width * height];
+            frame = new byte[width * height];
+            writeHeader();
+        } else if (img.getWidth() != width || img.getHeight() != height) {
+            throw new IllegalArgumentException("frame is " + img.getWidth() + "x" + img.getHeight()
+                    + ", animation is " + width + "x" + height);
+        }
+        toIndices(img);
+
+        boolean first = (frames == 0);
+        int x0 = 0, y0 = 0, x1 = width, y1 = height;
+        if (!first) {
+            // bounding box of changed pixels
+            x0 = width; y0 = height; x1 = 0; y1 = 0;
+            for (int y = 0; y < height; y++) {
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    if (frame[row + x] != canvas[row + x]) {
+                        if (x < x0) x0 = x;
+                        if (x >= x1) x1 = x + 1;
+                        if (y < y0) y0 = y;
+                        y1 = y + 1;
+                    }
+                }
+            }
+            if (x1 == 0) {
+                // nothing changed: one transparent pixel still carries the delay
+                x0 = 0; y0 = 0; x1 = 1; y1 = 1;
+            }
+        }
+
+        int rw = x1 - x0, rh = y1 - y0;
+        // When a quarter or more of the rectangle changed (noisy dithers), mixing in transparent pixels
+        // only breaks up LZW runs, so the rectangle is written opaque instead.
+        boolean masked = !first && changedIn(x0, y0, x1, y1) * 4 <= rw * rh;
+        byte[] rect = new byte[rw * rh];
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            int dst = (y - y0) * rw;
+            for (int x = x0; x < x1; x++) {
+                byte v = frame[row + x];
+                rect[dst + x - x0] = (masked && v == canvas[row + x]) ? (byte) TRANSPARENT : v;
+                canvas[row + x] = v;
+            }
+        }
+
+        // Graphic Control Extension: disposal 1 (do not dispose), transparency for masked rectangles
+        int delay = Math.max(0, delayCs);
+        out.write(0x21);
+        out.write(0xF9);
+        out.write(4);
+        out.write((1 << 2) | (masked ? 1 : 0));
+        writeShort(delay);
+        out.write(TRANSPARENT);
+        out.write(0);
+
+        // Image Descriptor, no local color table
+        out.write(0x2C);
+        writeShort(x0);
+        writeShort(y0);
+        writeShort(rw);
+        writeShort(rh);
+        out.write(0);
+
+        lzw.encode(rect, out);
+        frames++;
+    }
+
+    private int changedIn(int x0, int y0, int x1, int y1) {
+        int n = 0;
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            for (int x = x0; x < x1; x++) {
+                if (frame[row + x] != canvas[row + x]) n++;
+            }
+        }
+        return n;
+    }
+
+    private void toIndices(BufferedImage img) {
+        LumaReader reader = LumaReader.of(img);
+        int[] lum = new int[width];
+        for (int y = 0; y < height; y++) {
+            reader.readRow(y, lum);
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                frame[row + x] = (lum[x] >= 128) ? (byte) WHITE : (byte) BLACK;
+            }
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        out.write(new byte[]{'G', 'I', 'F', '8', '9', 'a'});
+        writeShort(width);
+        writeShort(height);
+        // global color table of 2^(1+1) = 4 entries, 2 bits of color resolution
+        out.write(0x80 | (1 << 4) | 1);
+        out.write(BLACK); // background color index
+        out.write(0);     // pixel aspect ratio
+        out.write(new byte[]{
+                0, 0, 0,                       // black
+                (byte) 255, (byte) 255, (byte) 255, // white
+                0, 0, 0,                       // transparent
+                0, 0, 0                        // unused
+        });
+        // NETSCAPE2.0 looping extension
+        out.write(0x21);
+        out.write(0xFF);
+        out.write(11);
+        out.write(new byte[]{'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0'});
+        out.write(3);
+        out.write(1);
+        writeShort(loopCount);
+        out.write(0);
+    }
+
+    private void writeShort(int v) throws IOException {
+        out.write(v & 0xFF);
+        out.write((v >> 8) & 0xFF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (canvas != null) out.write(0x3B); // trailer
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * GIF-flavoured LZW over a 4-symbol alphabet. With so few symbols the string table is a
+     * dense {@code [code][symbol]} array rather than a hash.
+     */
+    private static final class LzwEncoder {
+        private static final int MAX_CODE = 4095;
+        private static final int CLEAR = 1 << MIN_CODE_SIZE;
+        private static final int EOI = CLEAR + 1;
+
+        private final int[] table = new int[(MAX_CODE + 1) * 4];
+        private final byte[] block = new byte[256];
+        private int blockLen;
+        private int bitBuf, bitCount;
+        private OutputStream out;
+
+        void encode(byte[] pixels, OutputStream out) throws IOException {
+            this.out = out;
+            out.write(MIN_CODE_SIZE);
+            blockLen = 0;
+            bitBuf = 0;
+            bitCount = 0;
+
+            int codeSize = MIN_CODE_SIZE + 1;
+            int maxCode = reset();
+            writeCode(CLEAR, codeSize);
+            int cur = pixels[0];
+            for (int i = 1; i < pixels.length; i++) {
+                int sym = pixels[i];
+                int key = (cur << 2) | sym;
+                int next = table[key];
+                if (next != 0) {
+                    cur = next;
+                    continue;
+                }
+                writeCode(cur, codeSize);
+                table[key] = ++maxCode;
+                if (maxCode >= (1 << codeSize)) codeSize++;
+                if (maxCode == MAX_CODE) {
+                    writeCode(CLEAR, codeSize);
+                    maxCode = reset();
+                    codeSize = MIN_CODE_SIZE + 1;
+                }
+                cur = sym;
+            }
+            writeCode(cur, codeSize);
+            // the decoder adds one more entry after reading that code and may widen before EOI
+            if (maxCode + 1 >= (1 << codeSize) && codeSize < 12) codeSize++;
+            writeCode(EOI, codeSize);
+            if (bitCount > 0) writeByte(bitBuf & 0xFF);
+            flushBlock();
+            out.write(0); // block terminator
+        }
+
+        /** Clears the string table and returns the last code in use. */
+        private int reset() {
+            Arrays.fill(table, 0);
+            return EOI;
+        }
+
+        private void writeCode(int code, int size) throws IOException {
+            bitBuf |= code << bitCount;
+            bitCount += size;
+            while (bitCount >= 8) {
+                writeByte(bitBuf & 0xFF);
+                bitBuf >>>= 8;
+                bitCount -= 8;
+            }
+        }
+
+        private void writeByte(int b) throws IOException {
+            block[blockLen++] = (byte) b;
+            if (blockLen == 255) flushBlock();
+        }
+
+        private void flushBlock() throws IOException {
+            if (blockLen == 0) return;
+            out.write(blockLen);
+            out.write(block, 0, blockLen);
+            blockLen = 0;
+        }
+    }
+}
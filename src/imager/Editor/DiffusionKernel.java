@@ -0,0 +1,90 @@
+package imager.Editor;
+
+import java.util.Locale;
+
+/**
+ * Error-diffusion kernels: where a pixel's quantization error goes and in what shares.
+ *
+ * Each tap is (dx, dy, weight) relative to the current pixel in scan direction, with shares of
+ * weight / divisor. In fixed point, kernels that pass on the whole error give the last tap
+ * whatever the other (rounded-down) shares leave over; Atkinson passes on only 6/8 of the error
+ * by design.
+ */
+public enum DiffusionKernel {
+
+    FLOYD_STEINBERG("fs", 16, true, new int[][]{
+            {1, 0, 7},
+            {-1, 1, 3}, {0, 1, 5}, {1, 1, 1}}),
+    ATKINSON("atkinson", 8, false, new int[][]{
+            {1, 0, 1}, {2, 0, 1},
+            {-1, 1, 1}, {0, 1, 1}, {1, 1, 1},
+            {0, 2, 1}}),
+    JARVIS("jarvis", 48, true, new int[][]{
+            {1, 0, 7}, {2, 0, 5},
+            {-2, 1, 3}, {-1, 1, 5}, {0, 1, 7}, {1, 1, 5}, {2, 1, 3},
+            {-2, 2, 1}, {-1, 2, 3}, {0, 2, 5}, {1, 2, 3}, {2, 2, 1}}),
+    STUCKI("stucki", 42, true, new int[][]{
+            {1, 0, 8}, {2, 0, 4},
+            {-2, 1, 2}, {-1, 1, 4}, {0, 1, 8}, {1, 1, 4}, {2, 1, 2},
+            {-2, 2, 1}, {-1, 2, 2}, {0, 2, 4}, {1, 2, 2}, {2, 2, 1}}),
+    SIERRA("sierra", 32, true, new int[][]{
+            {1, 0, 5}, {2, 0, 3},
+            {-2, 1, 2}, {-1, 1, 4}, {0, 1, 5}, {1, 1, 4}, {2, 1, 2},
+            {-1, 2, 2}, {0, 2, 3}, {1, 2, 2}}),
+    SIERRA_LITE("sierra-lite", 4, true, new int[][]{
+            {1, 0, 2},
+            {-1, 1, 1}, {0, 1, 1}});
+
+    /** Shares are (err * multiplier) >> SHIFT, multiplier = weight / divisor in 16-bit fixed point. */
+    static final int SHIFT = 16;
+
+    private final String label;
+    /** True when the last tap takes the rounding remainder so the whole error is passed on. */
+    final boolean wholeError;
+    final int[] dx;
+    final int[] dy;
+    final int[] weight;
+    final int divisor;
+    final int[] multiplier;
+    /** Rows a pixel reaches, counting its own. */
+    final int rows;
+    /** Furthest a tap reaches sideways. */
+    final int reach;
+
+    DiffusionKernel(String label, int divisor, boolean wholeError, int[][] taps) {
+        this.label = label;
+        this.wholeError = wholeError;
+        this.divisor = divisor;
+        int n = taps.length;
+        dx = new int[n];
+        dy = new int[n];
+        weight = new int[n];
+        multiplier = new int[n];
+        int maxDy = 0, maxDx = 0;
+        for (int k = 0; k < n; k++) {
+            dx[k] = taps[k][0];
+            dy[k] = taps[k][1];
+            weight[k] = taps[k][2];
+            multiplier[k] = (int) Math.round(weight[k] * (double) (1 << SHIFT) / divisor);
+            maxDy = Math.max(maxDy, dy[k]);
+            maxDx = Math.max(maxDx, Math.abs(dx[k]));
+        }
+        rows = maxDy + 1;
+        reach = maxDx;
+    }
+
+    /** Short name used on the command line and in output file names, e.g. "sierra-lite". */
+    public String label() {
+        return label;
+    }
+
+    /** Kernel for a label or constant name, e.g. "atkinson", "SIERRA_LITE", "floyd-steinberg". */
+    public static DiffusionKernel parse(String s) {
+        String key = s.trim().toLowerCase(Locale.ROOT).replace('_', '-');
+        if (key.equals("floyd-steinberg")) return FLOYD_STEINBERG;
+        for (DiffusionKernel k : values()) {
+            if (k.label.equals(key)) return k;
+        }
+        throw new IllegalArgumentException("unknown error-diffusion kernel " + s);
+    }
+}
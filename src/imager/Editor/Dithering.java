@@ -1,27 +1,19 @@
 package imager.Editor;
 
-import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Random;
 
-import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
-import javax.imageio.ImageTypeSpecifier;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.metadata.IIOInvalidTreeException;
-import javax.imageio.metadata.IIOMetadata;
-import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.stream.ImageInputStream;
-import javax.imageio.stream.ImageOutputStream;
 
-import org.w3c.dom.Node;
 
 public class Dithering {
 
@@ -29,295 +21,576 @@ public class Dithering {
         return ImageIO.read(new File(path));
     }
 
+    /**
+     * Loads an image that is about to be scaled down by scale, letting the reader keep only every
+     * k-th row and column (see {@link #decodeSubsampling}) so the full-size image is never
+     * allocated. Size the result with {@link #scaledSize} and the resize methods that take a
+     * target size; the resampler then covers the remaining fraction.
+     */
+    public static BufferedImage loadImage(String path, double scale) throws IOException {
+        int k = decodeSubsampling(scale);
+        if (k == 1) return loadImage(path);
+        try (ImageInputStream in = ImageIO.createImageInputStream(new File(path))) {
+            if (in == null) throw new IOException("cannot open " + path);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) throw new IOException("No image reader found");
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                // sample the middle of each k x k block rather than its corner
+                param.setSourceSubsampling(k, k, (k - 1) / 2, (k - 1) / 2);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Row and column step for decoding an image that will be scaled by scale: the largest k that
+     * still leaves the resampler at least 2x2 decoded pixels per output pixel, so it keeps
+     * averaging away the aliasing that plain decimation would bring. 1 for scales of 0.5 and up.
+     */
+    public static int decodeSubsampling(double scale) {
+        if (!(scale > 0)) throw new IllegalArgumentException("scale must be > 0");
+        return (int) Math.max(1, Math.floor(1 / (2 * scale)));
+    }
+
+    /** Size of a w x h image scaled by scale, each side rounded and at least 1 pixel. */
+    public static Dimension scaledSize(int w, int h, double scale) {
+        if (scale <= 0) throw new IllegalArgumentException("scale must be > 0");
+        return new Dimension((int) Math.max(1, Math.round(w * scale)), (int) Math.max(1, Math.round(h * scale)));
+    }
+
     public static void saveImage(BufferedImage img, String inputPath, String methodName) throws IOException {
-        File in = new File(inputPath);
+        File out = outputFile(inputPath, methodName);
+        writePng(img, out);
+        System.out.println("Saved: " + out.getAbsolutePath());
+    }
+
+    /**
+     * Writes img as a PNG. Opaque images of up to 256 colors, which includes every dithered
+     * result, are written by {@link PngStreamWriter}: 1-bit grayscale for black/white, indexed
+     * otherwise, at {@link #getPngCompression()} and deflated in parallel. Anything else,
+     * including any image whose color model has alpha, goes through ImageIO.
+     */
+    public static void writePng(BufferedImage img, File out) throws IOException {
+        // PngStreamWriter has no alpha, so transparency would be lost
+        int[] colors = img.getColorModel().hasAlpha() ? null : PngStreamWriter.colors(img, Palette.MAX_COLORS);
+        if (colors != null) {
+            PngStreamWriter.write(img, colors, out, pngCompression);
+        } else if (!ImageIO.write(img, "PNG", out)) {
+            throw new IOException("no PNG writer");
+        }
+    }
+
+    /** The PNG saveImage writes for an input: "name_methodName.png" next to it. */
+    public static File outputFile(String inputPath, String methodName) {
+        File in = new File(inputPath).getAbsoluteFile();
         String name = in.getName();
         int dot = name.lastIndexOf('.');
         String base = (dot >= 0) ? name.substring(0, dot) : name;
-        String outPath = new File(in.getParentFile(), base + "_" + methodName + ".png").getAbsolutePath();
-        ImageIO.write(img, "PNG", new File(outPath));
-        System.out.println("Saved: " + outPath);
+        return new File(in.getParentFile(), base + "_" + methodName + ".png");
     }
 
-    private static int luminance(int rgb) {
-        Color c = new Color(rgb);
-        return (int) (0.2126 * c.getRed() + 0.7152 * c.getGreen() + 0.0722 * c.getBlue());
+    /** Width and height of an image file, read from its header without decoding pixels. */
+    public static Dimension imageSize(File input) throws IOException {
+        return StripDither.size(input);
+    }
+
+    /**
+     * True when a w x h image and its dithered copy fit in 1/share of the heap that is still
+     * free, counting 8 bytes per pixel. share is the number of images being worked on at once.
+     */
+    public static boolean fitsInHeap(int w, int h, int share) {
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        return (long) w * h * 8 <= free / Math.max(1, share);
+    }
+
+    /**
+     * Dithers an image file straight into a PNG, reading and writing it in horizontal strips
+     * so neither image is ever held whole; for files too large for the heap. Uses the still
+     * path's settings (palette, map, seed, kernel, serpentine) and gives the same pixels as
+     * dithering the loaded image, without resizing. Output is written as by {@link #writePng}.
+     */
+    public static void ditherInStrips(File input, File output, int methodChoice, int threshold) throws IOException {
+        StripDither.dither(input, output, methodChoice, threshold, colorPalette(), orderedMap, seed,
+                diffusionKernel, serpentine, pngCompression, 0);
+    }
+
+    private static final int WHITE = 0xFFFFFF;
+    private static final int BLACK = 0x000000;
+
+    /** Backing array of a freshly created TYPE_INT_RGB image (offset 0, stride == width). */
+    private static int[] pixels(BufferedImage dst) {
+        return ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+    }
+
+    /** Number of worker threads used by the point-wise methods (threshold, random, Bayer). */
+    public static int getParallelism() {
+        return RowBands.getParallelism();
+    }
+
+    /**
+     * Sets how many threads the point-wise methods may use. 1 forces single-threaded execution;
+     * images under {@value RowBands#MIN_PARALLEL_PIXELS} pixels always run on the caller's thread.
+     */
+    public static void setParallelism(int threads) {
+        RowBands.setParallelism(threads);
+    }
+
+    /** Largest tiled threshold map (in ints) built for the vector ordered path. */
+    static final int MAX_TILED = 1 << 22;
+
+    private static volatile boolean bilevelGif;
+    private static volatile Palette palette;
+    private static volatile Resampler.Filter resampleFilter = Resampler.Filter.BOX;
+    private static volatile ThresholdMap orderedMap = ThresholdMap.bayer(4);
+    private static volatile long seed;
+    private static volatile DiffusionKernel diffusionKernel = DiffusionKernel.FLOYD_STEINBERG;
+    private static volatile boolean serpentine;
+    private static volatile int pngCompression = 4;
+
+    /**
+     * True when luminance, threshold and ordered dithering run on the Vector API kernels. That
+     * needs the JVM started with {@code --add-modules jdk.incubator.vector}; otherwise, or with
+     * {@code -Dimager.simd=false}, they stay scalar. Output is the same either way.
+     */
+    public static boolean isVectorized() {
+        return Simd.enabled();
+    }
+
+    /** Switches the vector kernels on or off; turning them on does nothing when unavailable. */
+    public static void setVectorized(boolean enabled) {
+        Simd.setEnabled(enabled);
+    }
+
+    /** True when {@link #animatedDither} writes through {@link BilevelGifWriter}. */
+    public static boolean isBilevelGif() {
+        return bilevelGif;
+    }
+
+    /** Chooses {@link BilevelGifWriter} (true) or the ImageIO writer (false, the default) for animatedDither. */
+    public static void setBilevelGif(boolean enabled) {
+        bilevelGif = enabled;
+    }
+
+    /** Filter used by {@link #resize(BufferedImage, double)}; BOX (area averaging) by default. */
+    public static Resampler.Filter getResampleFilter() {
+        return resampleFilter;
+    }
+
+    public static void setResampleFilter(Resampler.Filter filter) {
+        if (filter == null) throw new IllegalArgumentException("filter must not be null");
+        resampleFilter = filter;
+    }
+
+    /**
+     * Threshold map used by the ordered methods (menu 3 and 4, black/white and palette) in the
+     * still, GIF and video paths; the 4x4 Bayer matrix by default.
+     */
+    public static ThresholdMap getOrderedMap() {
+        return orderedMap;
+    }
+
+    public static void setOrderedMap(ThresholdMap map) {
+        if (map == null) throw new IllegalArgumentException("map must not be null");
+        orderedMap = map;
+    }
+
+    /**
+     * Seed of the random and avoid-cluster noise in the still, GIF and video paths; 0 by default.
+     * Random noise also depends on the frame index, so every frame of an animation differs but a
+     * rerun with the same seed reproduces the output exactly.
+     */
+    public static long getSeed() {
+        return seed;
+    }
+
+    public static void setSeed(long s) {
+        seed = s;
+    }
+
+    /**
+     * Kernel of the error-diffusion method (menu 5, black/white and palette) in the still, GIF
+     * and video paths; Floyd-Steinberg by default.
+     */
+    public static DiffusionKernel getDiffusionKernel() {
+        return diffusionKernel;
+    }
+
+    public static void setDiffusionKernel(DiffusionKernel kernel) {
+        if (kernel == null) throw new IllegalArgumentException("kernel must not be null");
+        diffusionKernel = kernel;
+    }
+
+    /** True when error diffusion alternates scan direction every row (off by default). */
+    public static boolean isSerpentine() {
+        return serpentine;
+    }
+
+    public static void setSerpentine(boolean enabled) {
+        serpentine = enabled;
+    }
+
+    /**
+     * Deflate level of the PNGs written by {@link #writePng} and the strip path; 4 by default.
+     * Dithered pixels are close to noise, so levels above 4 buy a few percent at several times
+     * the time.
+     */
+    public static int getPngCompression() {
+        return pngCompression;
+    }
+
+    /** 0 (stored) to 9 (smallest), or -1 for the default. */
+    public static void setPngCompression(int level) {
+        if (level < -1 || level > 9) throw new IllegalArgumentException("compression level must be 0-9 or -1");
+        pngCompression = level;
+    }
+
+    /** Output palette for the GIF and video paths, or null for black/white (the default). */
+    public static Palette getPalette() {
+        return palette;
+    }
+
+    public static void setPalette(Palette p) {
+        palette = p;
+    }
+
+    /** The palette to dither to, or null when output is plain black/white. */
+    static Palette colorPalette() {
+        Palette p = palette;
+        return (p == null || p.isBlackWhite()) ? null : p;
     }
 
     public static BufferedImage threshold(BufferedImage src, int threshold) {
         int w = src.getWidth(), h = src.getHeight();
         BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int lum = luminance(src.getRGB(x, y));
-                int val = (lum >= threshold) ? 0xFFFFFF : 0x000000;
-                dst.setRGB(x, y, val);
+        int[] out = pixels(dst);
+        boolean simd = Simd.enabled();
+        LumaReader reader = LumaReader.of(src);
+        RowBands.run(w, h, (y0, y1) -> {
+            int[] lum = new int[w];
+            for (int y = y0; y < y1; y++) {
+                reader.readRow(y, lum);
+                int row = y * w;
+                if (simd) {
+                    SimdKernels.threshold(lum, threshold, out, row, w);
+                    continue;
+                }
+                for (int x = 0; x < w; x++) {
+                    out[row + x] = (lum[x] >= threshold) ? WHITE : BLACK;
+                }
             }
-        }
+        });
         return dst;
     }
 
     public static BufferedImage randomDither(BufferedImage src) {
-        return randomDitherPerFrame(src, 0); // seed 0 for static images
+        return randomDither(src, 0, 0);
     }
 
-    private static BufferedImage randomDitherPerFrame(BufferedImage src, long seed) {
+    /**
+     * White where luminance >= a uniform 0-255 threshold hashed from (seed, frame, x, y). The
+     * same arguments always give the same image, however the rows are split between threads.
+     */
+    public static BufferedImage randomDither(BufferedImage src, long seed, int frame) {
         int w = src.getWidth(), h = src.getHeight();
         BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        Random rnd = new Random(seed);
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int lum = luminance(src.getRGB(x, y));
-                int r = rnd.nextInt(256);
-                int val = (lum >= r) ? 0xFFFFFF : 0x000000;
-                dst.setRGB(x, y, val);
+        int[] out = pixels(dst);
+        LumaReader reader = LumaReader.of(src);
+        long key = Noise.key(seed, frame);
+        RowBands.run(w, h, (y0, y1) -> {
+            int[] lum = new int[w];
+            for (int y = y0; y < y1; y++) {
+                reader.readRow(y, lum);
+                int row = y * w;
+                long counter = Noise.rowStart(key, y);
+                for (int x = 0; x < w; x++, counter += Noise.GAMMA) {
+                    out[row + x] = (lum[x] >= Noise.level(counter)) ? WHITE : BLACK;
+                }
             }
-        }
+        });
         return dst;
     }
 
+    /** 4x4 Bayer ordered dithering, regardless of {@link #getOrderedMap()}. */
     public static BufferedImage orderedBayer(BufferedImage src) {
-        int[][] bayer4 = {
-                {0, 8, 2, 10},
-                {12, 4, 14, 6},
-                {3, 11, 1, 9},
-                {15, 7, 13, 5}
-        };
-        int n = 4;
+        return orderedDither(src, ThresholdMap.bayer(4));
+    }
+
+    /** Ordered dithering with any threshold map: white where luminance >= the map's threshold. */
+    public static BufferedImage orderedDither(BufferedImage src, ThresholdMap map) {
         int w = src.getWidth(), h = src.getHeight();
         BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int lum = luminance(src.getRGB(x, y));
-                int i = x % n, j = y % n;
-                int threshold = (int) ((bayer4[j][i] + 0.5) * (255.0 / (n * n)));
-                int val = (lum >= threshold) ? 0xFFFFFF : 0x000000;
-                dst.setRGB(x, y, val);
+        int[] out = pixels(dst);
+        int[] table = map.table();
+        int mw = map.width();
+        // vector compares want the map row spread over the whole image row
+        int[] tiled = (Simd.enabled() && (long) map.height() * w <= MAX_TILED) ? map.tiled(w) : null;
+        LumaReader reader = LumaReader.of(src);
+        RowBands.run(w, h, (y0, y1) -> {
+            int[] lum = new int[w];
+            for (int y = y0; y < y1; y++) {
+                reader.readRow(y, lum);
+                if (tiled != null) {
+                    SimdKernels.ordered(lum, tiled, (y % map.height()) * w, out, y * w, w);
+                    continue;
+                }
+                int start = map.rowOffset(y), end = start + mw, t = start;
+                int row = y * w;
+                for (int x = 0; x < w; x++) {
+                    out[row + x] = (lum[x] >= table[t]) ? WHITE : BLACK;
+                    if (++t == end) t = start;
+                }
             }
-        }
+        });
         return dst;
     }
 
     public static BufferedImage orderedAvoidCluster(BufferedImage src) {
-        int[][] bayer4 = {
-                {0, 8, 2, 10},
-                {12, 4, 14, 6},
-                {3, 11, 1, 9},
-                {15, 7, 13, 5}
-        };
-        int n = 4;
-        Random rnd = new Random(0xC0FFEE);
+        return orderedAvoidCluster(src, ThresholdMap.bayer(4), 0);
+    }
+
+    public static BufferedImage orderedAvoidCluster(BufferedImage src, ThresholdMap map) {
+        return orderedAvoidCluster(src, map, 0);
+    }
+
+    /**
+     * Ordered dithering with each threshold jittered by -16..16, hashed from (seed, x, y), to
+     * break up the map's pattern. The jitter does not depend on the frame, so animations keep
+     * a steady pattern like the plain ordered method.
+     */
+    public static BufferedImage orderedAvoidCluster(BufferedImage src, ThresholdMap map, long seed) {
         int w = src.getWidth(), h = src.getHeight();
         BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int lum = luminance(src.getRGB(x, y));
-                int i = x % n, j = y % n;
-                int base = bayer4[j][i];
-                int jitter = rnd.nextInt(33) - 16;
-                int threshold = (int) ((base + 0.5) * (255.0 / (n * n))) + jitter;
-                threshold = Math.max(0, Math.min(255, threshold));
-                int val = (lum >= threshold) ? 0xFFFFFF : 0x000000;
-                dst.setRGB(x, y, val);
+        int[] out = pixels(dst);
+        int[] table = map.table();
+        int mw = map.width();
+        long key = Noise.key(seed, 0);
+        LumaReader reader = LumaReader.of(src);
+        RowBands.run(w, h, (y0, y1) -> {
+            int[] lum = new int[w];
+            for (int y = y0; y < y1; y++) {
+                reader.readRow(y, lum);
+                int start = map.rowOffset(y), end = start + mw, t = start;
+                int row = y * w;
+                long counter = Noise.rowStart(key, y);
+                for (int x = 0; x < w; x++, counter += Noise.GAMMA) {
+                    int threshold = table[t] + Noise.jitter(counter);
+                    threshold = Math.max(0, Math.min(255, threshold));
+                    out[row + x] = (lum[x] >= threshold) ? WHITE : BLACK;
+                    if (++t == end) t = start;
+                }
             }
-        }
+        });
         return dst;
     }
 
     public static BufferedImage floydSteinberg(BufferedImage src) {
-        int w = src.getWidth(), h = src.getHeight();
-        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        float[][] gray = new float[h][w];
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                gray[y][x] = luminance(src.getRGB(x, y));
-            }
-        }
+        return floydSteinberg(src, false);
+    }
 
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                float old = gray[y][x];
-                int newv = (old >= 128) ? 255 : 0;
-                float err = old - newv;
-                dst.setRGB(x, y, (newv == 255) ? 0xFFFFFF : 0x000000);
-                if (x + 1 < w) gray[y][x + 1] += err * 7 / 16f;
-                if (x - 1 >= 0 && y + 1 < h) gray[y + 1][x - 1] += err * 3 / 16f;
-                if (y + 1 < h) gray[y + 1][x] += err * 5 / 16f;
-                if (x + 1 < w && y + 1 < h) gray[y + 1][x + 1] += err * 1 / 16f;
-            }
-        }
-        return dst;
+    /**
+     * Floyd-Steinberg error diffusion. Left-to-right scanning uses a row-lagged wavefront
+     * across {@link #getParallelism()} threads on large images and matches the serial result
+     * exactly; serpentine scanning alternates direction every row and always runs serially.
+     */
+    public static BufferedImage floydSteinberg(BufferedImage src, boolean serpentine) {
+        return FloydSteinberg.dither(src, serpentine);
     }
 
-    public static BufferedImage resize(BufferedImage src, double scale) {
-        if (scale <= 0) throw new IllegalArgumentException("scale must be > 0");
-        int w = (int) Math.max(1, Math.round(src.getWidth() * scale));
-        int h = (int) Math.max(1, Math.round(src.getHeight() * scale));
-        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        java.awt.Image tmp = src.getScaledInstance(w, h, java.awt.Image.SCALE_SMOOTH);
-        java.awt.Graphics2D g2 = dst.createGraphics();
-        g2.drawImage(tmp, 0, 0, null);
-        g2.dispose();
-        return dst;
+    /**
+     * Error diffusion with any kernel. Floyd-Steinberg takes the wavefront-parallel path of
+     * {@link #floydSteinberg(BufferedImage, boolean)}; the other kernels run serially.
+     */
+    public static BufferedImage errorDiffusion(BufferedImage src, DiffusionKernel kernel, boolean serpentine) {
+        return ErrorDiffusion.dither(src, kernel, serpentine);
     }
 
-    public static List<BufferedImage> loadGifFrames(String path, List<Integer> delaysCs) throws IOException {
-        List<BufferedImage> frames = new ArrayList<>();
-        ImageInputStream stream = ImageIO.createImageInputStream(new File(path));
-        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
-        if (!readers.hasNext()) throw new IOException("No image reader found");
-        ImageReader reader = readers.next();
-        reader.setInput(stream);
-
-        int num = reader.getNumImages(true);
-        for (int i = 0; i < num; i++) {
-            BufferedImage frame = reader.read(i);
-            frames.add(frame);
-            try {
-                IIOMetadata meta = reader.getImageMetadata(i);
-                int delay = extractGifDelay(meta);
-                delaysCs.add(delay);
-            } catch (Exception e) {
-                delaysCs.add(10);
-            }
-        }
-        reader.dispose();
-        stream.close();
-        return frames;
+    /** Maps every pixel to the nearest palette color, the color counterpart of {@link #threshold}. */
+    public static BufferedImage threshold(BufferedImage src, Palette palette) {
+        return PaletteDither.nearest(src, palette);
     }
 
-    private static int extractGifDelay(IIOMetadata meta) {
-        if (meta == null) return 10;
-        String[] names = meta.getMetadataFormatNames();
-        for (String name : names) {
-            IIOMetadataNode root = (IIOMetadataNode) meta.getAsTree(name);
-            Node node = root.getFirstChild();
-            while (node != null) {
-                if ("GraphicControlExtension".equals(node.getNodeName())) {
-                    IIOMetadataNode gce = (IIOMetadataNode) node;
-                    String delayTime = gce.getAttribute("delayTime");
-                    try {
-                        return Integer.parseInt(delayTime);
-                    } catch (Exception e) {
-                        return 10;
-                    }
-                }
-                node = node.getNextSibling();
-            }
-        }
-        return 10;
+    /** 4x4 Bayer ordered dithering to an arbitrary palette. */
+    public static BufferedImage orderedBayer(BufferedImage src, Palette palette) {
+        return orderedDither(src, palette, ThresholdMap.bayer(4));
     }
 
-    public static void writeAnimatedGif(List<BufferedImage> frames, String outPath,
-                                        int[] delaysCs, int loopCount,
-                                        int canvasWidth, int canvasHeight) throws IOException {
-        if (frames.isEmpty()) throw new IllegalArgumentException("No frames");
+    /** Ordered dithering to an arbitrary palette with any threshold map. */
+    public static BufferedImage orderedDither(BufferedImage src, Palette palette, ThresholdMap map) {
+        return PaletteDither.ordered(src, palette, map);
+    }
 
-        ImageWriter writer = ImageIO.getImageWritersBySuffix("gif").next();
-        ImageOutputStream output = ImageIO.createImageOutputStream(new File(outPath));
-        writer.setOutput(output);
-
-        ImageWriteParam params = writer.getDefaultWriteParam();
-
-            IIOMetadata streamMeta = writer.getDefaultStreamMetadata(params);
-            if (streamMeta != null) {
-                String streamFormat = streamMeta.getNativeMetadataFormatName();
-                IIOMetadataNode streamRoot = new IIOMetadataNode(streamFormat);
-                IIOMetadataNode appExtensions = new IIOMetadataNode("ApplicationExtensions");
-                IIOMetadataNode appNode = new IIOMetadataNode("ApplicationExtension");
-                appNode.setAttribute("applicationID", "NETSCAPE");
-                appNode.setAttribute("authenticationCode", "2.0");
-                int loop = (loopCount < 0) ? 0 : loopCount;
-                byte[] loopBytesStream = new byte[]{1, (byte) (loop & 0xFF), (byte) ((loop >> 8) & 0xFF)};
-                appNode.setUserObject(loopBytesStream);
-                appExtensions.appendChild(appNode);
-                streamRoot.appendChild(appExtensions);
-                try {
-                    streamMeta.mergeTree(streamFormat, streamRoot);
-                } catch (Exception ex) {
-                    // ignore
-                }
-            }
+    public static BufferedImage floydSteinberg(BufferedImage src, Palette palette) {
+        return floydSteinberg(src, palette, false);
+    }
+
+    /** Floyd-Steinberg error diffusion to an arbitrary palette, per RGB channel; always serial. */
+    public static BufferedImage floydSteinberg(BufferedImage src, Palette palette, boolean serpentine) {
+        return errorDiffusion(src, palette, DiffusionKernel.FLOYD_STEINBERG, serpentine);
+    }
+
+    /** Error diffusion to an arbitrary palette with any kernel, per RGB channel; always serial. */
+    public static BufferedImage errorDiffusion(BufferedImage src, Palette palette, DiffusionKernel kernel,
+                                               boolean serpentine) {
+        return ErrorDiffusion.dither(src, palette, kernel, serpentine);
+    }
 
-            // start sequence with stream metadata
-            writer.prepareWriteSequence(streamMeta);
+    /**
+     * Palette version of a menu method: 1 is nearest color, 2-4 are ordered with
+     * {@link #getOrderedMap()} (random and avoid-cluster have no color form) and everything else
+     * is error diffusion with {@link #getDiffusionKernel()}.
+     */
+    public static BufferedImage ditherToPalette(BufferedImage src, int methodChoice, Palette palette) {
+        return switch (methodChoice) {
+            case 1 -> threshold(src, palette);
+            case 2, 3, 4 -> orderedDither(src, palette, orderedMap);
+            default -> errorDiffusion(src, palette, diffusionKernel, serpentine);
+        };
+    }
 
-        for (int i = 0; i < frames.size(); i++) {
-            BufferedImage img = frames.get(i);
+    /** Resizes with {@link #getResampleFilter()}; output is TYPE_INT_RGB. */
+    public static BufferedImage resize(BufferedImage src, double scale) {
+        return resize(src, scale, resampleFilter);
+    }
 
-            IIOMetadata frameMeta = writer.getDefaultImageMetadata(
-                    ImageTypeSpecifier.createFromRenderedImage(img), params);
+    /**
+     * Resizes by scale (each side rounded, at least 1 pixel) with a separable filter. Kernel
+     * weights are cached per size, so resizing many same-sized frames only pays for them once.
+     */
+    public static BufferedImage resize(BufferedImage src, double scale, Resampler.Filter filter) {
+        Dimension d = scaledSize(src.getWidth(), src.getHeight(), scale);
+        return Resampler.resize(src, d.width, d.height, filter);
+    }
 
-            IIOMetadataNode gce = new IIOMetadataNode("GraphicControlExtension");
-            gce.setAttribute("disposalMethod", "none"); // or "restoreToBackground"
-            gce.setAttribute("userInputFlag", "FALSE");
-            gce.setAttribute("transparentColorFlag", "FALSE");
-            int delay = (delaysCs != null && i < delaysCs.length) ? delaysCs[i] : 10;
-            gce.setAttribute("delayTime", String.valueOf(delay));
-            gce.setAttribute("transparentColorIndex", "0");
+    /** Resizes to exactly w x h with {@link #getResampleFilter()}; output is TYPE_INT_RGB. */
+    public static BufferedImage resize(BufferedImage src, int w, int h) {
+        return Resampler.resize(src, w, h, resampleFilter);
+    }
 
-            IIOMetadataNode frameRoot = new IIOMetadataNode(frameMeta.getNativeMetadataFormatName());
-            frameRoot.appendChild(gce);
+    /**
+     * Resizes by scale with {@link #getResampleFilter()} and dithers in the same pass, giving the
+     * same image as {@code resize} followed by the matching method without materializing the
+     * resized copy. methodChoice is the menu number; threshold is used by method 1 only.
+     */
+    public static BufferedImage resizeAndDither(BufferedImage src, double scale, int methodChoice, int threshold) {
+        return resizeAndDither(src, scale, methodChoice, threshold, seed, 0);
+    }
 
-            // Image descriptor (position + size)
-            IIOMetadataNode imgDesc = new IIOMetadataNode("ImageDescriptor");
-            imgDesc.setAttribute("imageLeftPosition", "0");
-            imgDesc.setAttribute("imageTopPosition", "0");
-            imgDesc.setAttribute("imageWidth", String.valueOf(img.getWidth()));
-            imgDesc.setAttribute("imageHeight", String.valueOf(img.getHeight()));
-            frameRoot.appendChild(imgDesc);
+    /**
+     * As above with an exact output size, for sources decoded with {@link #loadImage(String, double)}
+     * whose size is no longer the original's.
+     */
+    public static BufferedImage resizeAndDither(BufferedImage src, int dstW, int dstH, int methodChoice, int threshold) {
+        return resizeAndDither(src, dstW, dstH, methodChoice, threshold, seed, 0);
+    }
 
-            try {
-                frameMeta.mergeTree(frameMeta.getNativeMetadataFormatName(), frameRoot);
-            } catch (IIOInvalidTreeException e) {
-                // ignore
-            }
+    /** As above for one frame of an animation; seed and frame key the random methods' noise. */
+    static BufferedImage resizeAndDither(BufferedImage src, double scale, int methodChoice, int threshold,
+                                         long seed, int frame) {
+        Dimension d = scaledSize(src.getWidth(), src.getHeight(), scale);
+        return resizeAndDither(src, d.width, d.height, methodChoice, threshold, seed, frame);
+    }
 
-            IIOImage iioImage = new IIOImage(img, null, frameMeta);
-            writer.writeToSequence(iioImage, params);
+    private static BufferedImage resizeAndDither(BufferedImage src, int w, int h, int methodChoice, int threshold,
+                                                 long seed, int frame) {
+        if (w == src.getWidth() && h == src.getHeight()) {
+            return switch (methodChoice) {
+                case 1 -> threshold(src, threshold);
+                case 2 -> randomDither(src, seed, frame);
+                case 3 -> orderedDither(src, orderedMap);
+                case 4 -> orderedAvoidCluster(src, orderedMap, seed);
+                default -> errorDiffusion(src, diffusionKernel, serpentine);
+            };
         }
+        return FusedDither.dither(src, w, h, resampleFilter, methodChoice, threshold, orderedMap, seed, frame,
+                diffusionKernel, serpentine);
+    }
 
-        writer.endWriteSequence();
-        output.close();
-        writer.dispose();
-        System.out.println("Saved animated GIF: " + outPath);
+    /**
+     * Every frame of a GIF as the full canvas a viewer would show, with frame offsets and
+     * disposal applied (see {@link GifDecoder}); each frame's delay is added to delaysCs.
+     */
+    public static List<BufferedImage> loadGifFrames(String path, List<Integer> delaysCs) throws IOException {
+        List<BufferedImage> frames = new ArrayList<>();
+        try (GifDecoder decoder = new GifDecoder(path)) {
+            while (decoder.next()) {
+                frames.add(decoder.copyTo(null));
+                delaysCs.add(decoder.delayCs());
+            }
+        }
+        return frames;
     }
 
-    public static void animatedDither(String inputPath, int methodChoice, double scale, String outMethodTag) throws IOException {
-        List<Integer> delays = new ArrayList<>();
-        List<BufferedImage> frames = loadGifFrames(inputPath, delays);
-        if (frames.size() > 1) {
-            frames.remove(0);
-            if (!delays.isEmpty()) delays.remove(0);
+    public static void writeAnimatedGif(List<BufferedImage> frames, String outPath,
+                                        int[] delaysCs, int loopCount,
+                                        int canvasWidth, int canvasHeight) throws IOException {
+        if (frames.isEmpty()) throw new IllegalArgumentException("No frames");
+
+        try (GifSequenceWriter writer = new GifSequenceWriter(outPath, loopCount)) {
+            for (int i = 0; i < frames.size(); i++) {
+                int delay = (delaysCs != null && i < delaysCs.length) ? delaysCs[i] : 10;
+                writer.writeFrame(frames.get(i), delay);
+            }
         }
+        System.out.println("Saved animated GIF: " + outPath);
+    }
 
-        int originalWidth = frames.get(0).getWidth();
-        int originalHeight = frames.get(0).getHeight();
-        int canvasW = (int) Math.round(originalWidth * scale);
-        int canvasH = (int) Math.round(originalHeight * scale);
+    /**
+     * Same as {@link #writeAnimatedGif} but through {@link BilevelGifWriter}: frames are stored as
+     * black/white (luminance >= 128 is white) with only the changed rectangle of each frame written,
+     * which is far smaller and faster for dithered output. The canvas is the first frame's size.
+     */
+    public static void writeAnimatedGifBilevel(List<BufferedImage> frames, String outPath,
+                                               int[] delaysCs, int loopCount) throws IOException {
+        if (frames.isEmpty()) throw new IllegalArgumentException("No frames");
 
-        List<BufferedImage> processedFrames = new ArrayList<>();
+        try (BilevelGifWriter writer = new BilevelGifWriter(outPath, loopCount)) {
+            for (int i = 0; i < frames.size(); i++) {
+                int delay = (delaysCs != null && i < delaysCs.length) ? delaysCs[i] : 10;
+                writer.writeFrame(frames.get(i), delay);
+            }
+        }
+        System.out.println("Saved animated GIF: " + outPath);
+    }
 
-        for (int i = 0; i < frames.size(); i++) {
-            BufferedImage frame = frames.get(i);
+    /**
+     * Resize (if scale != 1) and dither one animation frame in a single pass; the random method's
+     * noise is keyed on {@link #getSeed()} and index. Dithers to {@link #getPalette()} when one is set.
+     */
+    static BufferedImage processFrame(BufferedImage frame, int methodChoice, double scale, int index) {
+        Palette p = colorPalette();
+        if (p != null) {
             if (scale != 1.0) {
                 frame = resize(frame, scale);
             }
-
-            BufferedImage dithered;
-            switch (methodChoice) {
-                case 1 -> dithered = threshold(frame, 128);
-                case 2 -> dithered = randomDitherPerFrame(frame, i * 7919L);
-                case 3 -> dithered = orderedBayer(frame);
-                case 4 -> dithered = orderedAvoidCluster(frame);
-                case 5 -> dithered = floydSteinberg(frame);
-                default -> dithered = floydSteinberg(frame);
-            }
-            processedFrames.add(dithered);
+            return ditherToPalette(frame, methodChoice, p);
         }
+        return resizeAndDither(frame, scale, methodChoice, 128, seed, index);
+    }
 
-        int[] delayArray = delays.stream().mapToInt(Integer::intValue).toArray();
+    /**
+     * Dithers every frame of an animated GIF and writes {@code <name>_<tag>[_xScale].gif} next to
+     * the input. Frames are streamed through bounded queues, so memory use does not grow with the
+     * number of frames, and are dithered on {@link #getParallelism()} workers at once. Every
+     * frame is dithered as the full canvas, with offsets and disposal applied (see {@link GifDecoder}).
+     * Random noise is keyed on {@link #getSeed()} and the frame index, so reruns give the same GIF.
+     */
+    public static void animatedDither(String inputPath, int methodChoice, double scale, String outMethodTag) throws IOException {
+        animatedDither(inputPath, methodChoice, scale, outMethodTag, false);
+    }
 
+    /**
+     * As {@link #animatedDither(String, int, double, String)}; with {@code temporal} set, only the
+     * 16x16 blocks that changed since the previous frame are dithered again and the rest are
+     * copied from the previous output. Per-frame reuse stats are printed as frames are written.
+     */
+    public static void animatedDither(String inputPath, int methodChoice, double scale, String outMethodTag,
+                                      boolean temporal) throws IOException {
         File inFile = new File(inputPath);
         String name = inFile.getName();
         int dot = name.lastIndexOf('.');
@@ -325,6 +598,10 @@ public class Dithering {
         String suffix = scale != 1.0 ? "_" + outMethodTag + "_x" + String.format("%.2f", scale) : "_" + outMethodTag;
         String outPath = new File(inFile.getParentFile(), base + suffix + ".gif").getAbsolutePath();
 
-        writeAnimatedGif(processedFrames, outPath, delayArray, 0, canvasW, canvasH);
+        boolean color = colorPalette() != null;
+        if (color && temporal) {
+            System.out.println("Temporal reuse only applies to black/white output; dithering every frame.");
+        }
+        GifPipeline.run(inputPath, outPath, methodChoice, scale, getParallelism(), temporal && !color, bilevelGif && !color);
     }
 }
@@ -0,0 +1,281 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Error diffusion driven by a {@link DiffusionKernel} table, to black/white or to a palette.
+ *
+ * Works in fixed point with {@link #FRAC} fractional bits. Rows live in one flat ring of
+ * {@code kernel.rows} padded rows, padded by the kernel's reach on both sides, so taps that
+ * fall off the left or right edge land in padding and taps below the last row land in a slot
+ * that is never read again: the inner loop has no bounds checks. Each tap is a single
+ * precomputed offset from the current pixel.
+ *
+ * Black/white Floyd-Steinberg goes to {@link FloydSteinberg}, whose unrolled float loop keeps
+ * the original output and can also run as a parallel wavefront.
+ */
+final class ErrorDiffusion {
+
+    static final int FRAC = 4;
+    private static final int MID = 128 << FRAC;
+    private static final int FULL = 255 << FRAC;
+
+    private ErrorDiffusion() {
+    }
+
+    /**
+     * Takes source rows in order, top to bottom (luminance, or packed RGB for a palette sink),
+     * and writes dithered pixels. Row y is written once row y + kernel.rows - 1 has been taken,
+     * or on {@link #finish()}.
+     */
+    interface Sink {
+        void accept(int[] row);
+
+        /** Diffuses the rows still waiting for rows below them. */
+        void finish();
+    }
+
+    static Sink rows(int[] out, int w, DiffusionKernel kernel, boolean serpentine) {
+        return rows(out, w, Integer.MAX_VALUE, kernel, serpentine);
+    }
+
+    /**
+     * Black/white sink writing into a ring of outRows output rows: row y lands at
+     * {@code (y % outRows) * w}, so a whole image uses outRows >= its height and a strip writer
+     * drains the ring as rows are finished.
+     */
+    static Sink rows(int[] out, int w, int outRows, DiffusionKernel kernel, boolean serpentine) {
+        if (kernel == DiffusionKernel.FLOYD_STEINBERG) return new FloydSteinberg.Rows(out, w, outRows, serpentine);
+        return new Rows(out, w, outRows, kernel, serpentine);
+    }
+
+    /** Palette sink taking packed RGB rows, with the same output ring as {@link #rows}. */
+    static Sink paletteRows(int[] out, int w, int outRows, Palette palette, DiffusionKernel kernel,
+                            boolean serpentine) {
+        return new PaletteRows(out, w, outRows, palette, kernel, serpentine);
+    }
+
+    static BufferedImage dither(BufferedImage src, DiffusionKernel kernel, boolean serpentine) {
+        if (kernel == DiffusionKernel.FLOYD_STEINBERG) return FloydSteinberg.dither(src, serpentine);
+        return ditherTable(src, kernel, serpentine);
+    }
+
+    /** The table-driven loop for any kernel; Floyd-Steinberg through it is the fixed-point approximation. */
+    static BufferedImage ditherTable(BufferedImage src, DiffusionKernel kernel, boolean serpentine) {
+        int w = src.getWidth(), h = src.getHeight();
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Rows rows = new Rows(pixels(dst), w, h, kernel, serpentine);
+        LumaReader reader = LumaReader.of(src);
+        int[] lum = new int[w];
+        for (int y = 0; y < h; y++) {
+            reader.readRow(y, lum);
+            rows.accept(lum);
+        }
+        rows.finish();
+        return dst;
+    }
+
+    private static final class Rows implements Sink {
+        private final int[] out;
+        private final int w;
+        private final int outRows;
+        private final DiffusionKernel kernel;
+        private final boolean serpentine;
+        private final int pad;
+        private final int stride;
+        private final int[] buf;
+        private final int[] off;
+        private int loaded;
+        private int done;
+
+        Rows(int[] out, int w, int outRows, DiffusionKernel kernel, boolean serpentine) {
+            this.out = out;
+            this.w = w;
+            this.outRows = outRows;
+            this.kernel = kernel;
+            this.serpentine = serpentine;
+            pad = Math.max(1, kernel.reach);
+            stride = w + 2 * pad;
+            buf = new int[kernel.rows * stride];
+            off = new int[kernel.dx.length];
+        }
+
+        @Override
+        public void accept(int[] lum) {
+            // the slot's previous row (loaded - rows) was diffused before this row came in
+            int base = (loaded % kernel.rows) * stride;
+            for (int x = 0; x < w; x++) {
+                buf[base + pad + x] = lum[x] << FRAC;
+            }
+            for (int p = 0; p < pad; p++) {
+                buf[base + p] = 0;
+                buf[base + pad + w + p] = 0;
+            }
+            loaded++;
+            if (loaded - done == kernel.rows) diffuse(done++);
+        }
+
+        @Override
+        public void finish() {
+            while (done < loaded) diffuse(done++);
+        }
+
+        private void diffuse(int y) {
+            int rows = kernel.rows;
+            int cur = (y % rows) * stride + pad;
+            boolean reverse = serpentine && (y & 1) == 1;
+            for (int k = 0; k < off.length; k++) {
+                int dx = reverse ? -kernel.dx[k] : kernel.dx[k];
+                off[k] = ((y + kernel.dy[k]) % rows) * stride + pad + dx - cur;
+            }
+            int[] mult = kernel.multiplier;
+            int last = off.length - 1;
+            boolean whole = kernel.wholeError;
+            int row = (y % outRows) * w;
+            int step = reverse ? -1 : 1;
+            for (int n = 0, x = reverse ? w - 1 : 0; n < w; n++, x += step) {
+                int i = cur + x;
+                int old = buf[i];
+                boolean on = old >= MID;
+                int err = on ? old - FULL : old;
+                out[row + x] = on ? 0xFFFFFF : 0x000000;
+                int rest = err;
+                for (int k = 0; k < last; k++) {
+                    int share = (err * mult[k]) >> DiffusionKernel.SHIFT;
+                    buf[i + off[k]] += share;
+                    rest -= share;
+                }
+                buf[i + off[last]] += whole ? rest : (err * mult[last]) >> DiffusionKernel.SHIFT;
+            }
+        }
+    }
+
+    /**
+     * Diffusion to a palette, per RGB channel, with the kernel's taps. Rows hold interleaved
+     * r, g, b values; each pixel is clamped to 0-255 before the lookup and the error is measured
+     * from the clamped value, so colors the palette cannot reach do not pile up error.
+     */
+    static BufferedImage dither(BufferedImage src, Palette palette, DiffusionKernel kernel, boolean serpentine) {
+        int w = src.getWidth(), h = src.getHeight();
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Sink rows = new PaletteRows(pixels(dst), w, h, palette, kernel, serpentine);
+        int[] rgb = new int[w];
+        for (int y = 0; y < h; y++) {
+            src.getRGB(0, y, w, 1, rgb, 0, w);
+            rows.accept(rgb);
+        }
+        rows.finish();
+        return dst;
+    }
+
+    private static final class PaletteRows implements Sink {
+        private final int[] out;
+        private final int w;
+        private final int outRows;
+        private final Palette palette;
+        private final DiffusionKernel kernel;
+        private final boolean serpentine;
+        private final int pad;
+        private final int stride;
+        private final int[] buf;
+        private final int[] off;
+        private int loaded;
+        private int done;
+
+        PaletteRows(int[] out, int w, int outRows, Palette palette, DiffusionKernel kernel, boolean serpentine) {
+            this.out = out;
+            this.w = w;
+            this.outRows = outRows;
+            this.palette = palette;
+            this.kernel = kernel;
+            this.serpentine = serpentine;
+            pad = Math.max(1, kernel.reach);
+            stride = (w + 2 * pad) * 3;
+            buf = new int[kernel.rows * stride];
+            off = new int[kernel.dx.length];
+        }
+
+        @Override
+        public void accept(int[] rgb) {
+            load(rgb, buf, (loaded % kernel.rows) * stride, pad, w);
+            loaded++;
+            if (loaded - done == kernel.rows) diffuse(done++);
+        }
+
+        @Override
+        public void finish() {
+            while (done < loaded) diffuse(done++);
+        }
+
+        private void diffuse(int y) {
+            int rows = kernel.rows;
+            int cur = (y % rows) * stride + pad * 3;
+            boolean reverse = serpentine && (y & 1) == 1;
+            int n = off.length, last = n - 1;
+            for (int k = 0; k < n; k++) {
+                int dx = reverse ? -kernel.dx[k] : kernel.dx[k];
+                off[k] = ((y + kernel.dy[k]) % rows) * stride + (pad + dx) * 3 - cur;
+            }
+            int[] mult = kernel.multiplier;
+            int step = reverse ? -1 : 1;
+            int row = (y % outRows) * w;
+            for (int c = 0, x = reverse ? w - 1 : 0; c < w; c++, x += step) {
+                int i = cur + x * 3;
+                int r = clampFixed(buf[i]), g = clampFixed(buf[i + 1]), b = clampFixed(buf[i + 2]);
+                int color = palette.color(palette.nearest(r >> FRAC, g >> FRAC, b >> FRAC));
+                out[row + x] = color;
+                int er = r - (((color >> 16) & 0xFF) << FRAC);
+                int eg = g - (((color >> 8) & 0xFF) << FRAC);
+                int eb = b - ((color & 0xFF) << FRAC);
+                int restR = er, restG = eg, restB = eb;
+                for (int k = 0; k < last; k++) {
+                    int t = i + off[k], m = mult[k];
+                    int sr = (er * m) >> DiffusionKernel.SHIFT;
+                    int sg = (eg * m) >> DiffusionKernel.SHIFT;
+                    int sb = (eb * m) >> DiffusionKernel.SHIFT;
+                    buf[t] += sr;
+                    buf[t + 1] += sg;
+                    buf[t + 2] += sb;
+                    restR -= sr;
+                    restG -= sg;
+                    restB -= sb;
+                }
+                int t = i + off[last];
+                if (kernel.wholeError) {
+                    buf[t] += restR;
+                    buf[t + 1] += restG;
+                    buf[t + 2] += restB;
+                } else {
+                    int m = mult[last];
+                    buf[t] += (er * m) >> DiffusionKernel.SHIFT;
+                    buf[t + 1] += (eg * m) >> DiffusionKernel.SHIFT;
+                    buf[t + 2] += (eb * m) >> DiffusionKernel.SHIFT;
+                }
+            }
+        }
+    }
+
+    /** Fills one ring slot with the fixed-point channels of a packed RGB row and clears its padding. */
+    private static void load(int[] rgb, int[] buf, int base, int pad, int w) {
+        int i = base + pad * 3;
+        for (int x = 0; x < w; x++, i += 3) {
+            int p = rgb[x];
+            buf[i] = ((p >> 16) & 0xFF) << FRAC;
+            buf[i + 1] = ((p >> 8) & 0xFF) << FRAC;
+            buf[i + 2] = (p & 0xFF) << FRAC;
+        }
+        for (int p = 0; p < pad * 3; p++) {
+            buf[base + p] = 0;
+            buf[i + p] = 0;
+        }
+    }
+
+    private static int clampFixed(int v) {
+        return v < 0 ? 0 : Math.min(v, FULL);
+    }
+
+    private static int[] pixels(BufferedImage dst) {
+        return ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+    }
+}
@@ -5,12 +5,22 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 public class FFmpegConverter {
 
@@ -26,39 +36,77 @@ public class FFmpegConverter {
         }
     }
 
-    public static boolean convertMp4ToGif(String inputMp4, String outputGif, int fps, int width) throws IOException, InterruptedException {
-        // Use -2 for the automatic dimension to ensure the other dimension is divisible by 2 (required by many encoders)
-        String scale = (width > 0) ? width + ":-2:flags=lanczos" : "-2:flags=lanczos";
+    private static volatile boolean twoPassGif = false;
 
-        // palette file in working directory (deleted after)
-        File palette = new File("palette.png");
-
-        List<String> palCmd = new ArrayList<>(Arrays.asList(
-                "ffmpeg", "-y", "-i", inputMp4,
-                "-vf", "fps=" + fps + ",scale=" + scale + ",palettegen",
-                "palette.png"
-        ));
-
-        ProcessResult r1 = execute(palCmd);
-        if (r1.exitCode != 0) {
-            if (palette.exists()) palette.delete();
-            System.err.println("ffmpeg palettegen failed (exit " + r1.exitCode + "). Output:\n" + r1.output);
-            return false;
-        }
+    /** True when video-to-GIF runs palettegen and paletteuse as two ffmpeg passes instead of one. */
+    public static boolean isTwoPassGif() {
+        return twoPassGif;
+    }
 
-        List<String> gifCmd = new ArrayList<>(Arrays.asList(
-                "ffmpeg", "-y", "-i", inputMp4, "-i", "palette.png",
-                "-lavfi", "fps=" + fps + ",scale=" + scale + "[x];[x][1:v]paletteuse=dither=bayer",
-                outputGif
-        ));
+    /**
+     * One pass (the default) decodes and scales the input once, but ffmpeg holds every scaled
+     * frame until palettegen has seen the last one. Two passes decode twice and keep only the
+     * palette between them, which suits inputs too long to buffer.
+     */
+    public static void setTwoPassGif(boolean twoPass) {
+        twoPassGif = twoPass;
+    }
 
-        ProcessResult r2 = execute(gifCmd);
+    public static boolean convertMp4ToGif(String inputMp4, String outputGif, int fps, int width) throws IOException, InterruptedException {
+        // Use -2 for the automatic dimension to ensure the other dimension is divisible by 2 (required by many encoders)
+        String scale = (width > 0) ? width + ":-2:flags=lanczos" : "-2:flags=lanczos";
+        return paletteGif(inputMp4, outputGif, "fps=" + fps + ",scale=" + scale);
+    }
 
-        if (palette.exists()) palette.delete();
-        if (r2.exitCode != 0) {
-            System.err.println("ffmpeg gif generation failed (exit " + r2.exitCode + "). Output:\n" + r2.output);
+    /**
+     * Encodes input to a GIF with a palette generated from the whole clip after filters. The
+     * palette (two-pass mode) and the GIF being written are per-job temp files, the GIF next to
+     * the output and renamed over it on success, so jobs running side by side never share a
+     * file and a failed job leaves no partial output.
+     */
+    private static boolean paletteGif(String input, String output, String filters) throws IOException, InterruptedException {
+        File out = new File(output).getAbsoluteFile();
+        File part = File.createTempFile("imager-", ".gif.part", out.getParentFile());
+        File palette = null;
+        try {
+            ProcessResult r;
+            if (twoPassGif) {
+                palette = File.createTempFile("imager-palette-", ".png");
+                ProcessResult r1 = execute(new ArrayList<>(Arrays.asList(
+                        "ffmpeg", "-y", "-i", input,
+                        "-vf", filters + ",palettegen",
+                        palette.getPath()
+                )));
+                if (r1.exitCode != 0) {
+                    System.err.println("ffmpeg palettegen failed (exit " + r1.exitCode + "). Output:\n" + r1.output);
+                    return false;
+                }
+                r = execute(new ArrayList<>(Arrays.asList(
+                        "ffmpeg", "-y", "-i", input, "-i", palette.getPath(),
+                        "-lavfi", filters + "[x];[x][1:v]paletteuse=dither=bayer",
+                        "-f", "gif", part.getPath()
+                )));
+            } else {
+                r = execute(new ArrayList<>(Arrays.asList(
+                        "ffmpeg", "-y", "-i", input,
+                        "-lavfi", filters + ",split[a][b];[a]palettegen[p];[b][p]paletteuse=dither=bayer",
+                        "-f", "gif", part.getPath()
+                )));
+            }
+            if (r.exitCode != 0) {
+                System.err.println("ffmpeg gif generation failed (exit " + r.exitCode + "). Output:\n" + r.output);
+                return false;
+            }
+            try {
+                Files.move(part.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(part.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } finally {
+            if (part.exists()) part.delete();
+            if (palette != null) palette.delete();
         }
-        return r2.exitCode == 0;
     }
 
     public static boolean compressAudio(String inputFile, String outputFile, int bitrateKbps, String codec) throws IOException, InterruptedException {
@@ -196,6 +244,14 @@ public class FFmpegConverter {
      * `choice` is the dithering method (1-5) used by the app UI; for now it's informative only.
      */
     public static boolean ditherVideo(String inputPath, String outputPath, int choice, double scale, boolean includeAudio, String audioCodec, int audioKbps) throws IOException, InterruptedException {
+        return ditherVideo(inputPath, outputPath, choice, scale, includeAudio, audioCodec, audioKbps, false);
+    }
+
+    /**
+     * As above; with {@code temporal} set, the per-frame path re-dithers only the 16x16 blocks that
+     * changed since the previous frame and prints per-frame reuse stats.
+     */
+    public static boolean ditherVideo(String inputPath, String outputPath, int choice, double scale, boolean includeAudio, String audioCodec, int audioKbps, boolean temporal) throws IOException, InterruptedException {
         if (inputPath == null || inputPath.isEmpty()) throw new IllegalArgumentException("inputPath required");
         String out = outputPath;
         if (out == null || out.isEmpty()) {
@@ -219,125 +275,291 @@ public class FFmpegConverter {
         }
 
         if (out.toLowerCase().endsWith(".gif")) {
-            // Generate palette and GIF using scale expression and fps
-            File palette = new File("palette.png");
-            List<String> palCmd = new ArrayList<>();
-            palCmd.add("ffmpeg"); palCmd.add("-y"); palCmd.add("-i"); palCmd.add(inputPath);
-            palCmd.add("-vf"); palCmd.add("fps=" + useFps + "," + scaleFilter + ",palettegen");
-            palCmd.add("palette.png");
-            ProcessResult r1 = execute(palCmd);
-            if (r1.exitCode != 0) {
-                if (palette.exists()) palette.delete();
-                System.err.println("ffmpeg palettegen failed (exit " + r1.exitCode + "). Output:\n" + r1.output);
-                return false;
-            }
+            return paletteGif(inputPath, out, "fps=" + useFps + "," + scaleFilter);
+        }
+
+        // Non-GIF: perform per-frame extraction, apply Java dithering, then reassemble
+        return perFrameDither(inputPath, out, choice, scale, includeAudio, audioCodec, audioKbps, useFps, temporal);
+    }
+
+    private static volatile int frameWorkers = 0;
+
+    /** Frames dithered concurrently by the per-frame video path; defaults to Dithering.getParallelism(). */
+    public static int getFrameWorkers() {
+        return frameWorkers > 0 ? frameWorkers : Dithering.getParallelism();
+    }
+
+    /** Sets the number of video frames dithered concurrently; 0 restores the default. */
+    public static void setFrameWorkers(int workers) {
+        if (workers < 0) throw new IllegalArgumentException("workers must be >= 0");
+        frameWorkers = workers;
+    }
+
+    /** index is the frame number, which keys the random method's noise together with Dithering.getSeed(). */
+    private static java.awt.image.BufferedImage ditherFrame(java.awt.image.BufferedImage img, int choice, int index) {
+        Palette palette = Dithering.colorPalette();
+        if (palette != null) return Dithering.ditherToPalette(img, choice, palette);
+        return switch (choice) {
+            case 1 -> Dithering.threshold(img, 128);
+            case 2 -> Dithering.randomDither(img, Dithering.getSeed(), index);
+            case 3 -> Dithering.orderedDither(img, Dithering.getOrderedMap());
+            case 4 -> Dithering.orderedAvoidCluster(img, Dithering.getOrderedMap(), Dithering.getSeed());
+            default -> Dithering.errorDiffusion(img, Dithering.getDiffusionKernel(), Dithering.isSerpentine());
+        };
+    }
+
+    private static volatile int videoSegments = 1;
+
+    /** Time ranges the per-frame video path is split into; 1 (the default) processes the video whole. */
+    public static int getVideoSegments() {
+        return videoSegments;
+    }
+
+    /**
+     * Splits per-frame video dithering into up to this many time ranges, each with its own
+     * ffmpeg decode, dithering pipeline and encode, run up to {@link Dithering#getParallelism()}
+     * at a time. The encoded ranges are joined without re-encoding and the audio is muxed once.
+     * Ranges are at least {@link #MIN_SEGMENT_SECONDS} long, so short clips use fewer. With
+     * temporal reuse, unchanged blocks just after a cut can differ slightly from an unsegmented
+     * run (see {@link #segmentedDither}).
+     */
+    public static void setVideoSegments(int segments) {
+        if (segments < 1) throw new IllegalArgumentException("segments must be >= 1");
+        videoSegments = segments;
+    }
+
+    /** Shortest time range worth its own pair of ffmpeg processes. */
+    static final double MIN_SEGMENT_SECONDS = 10;
+
+    /**
+     * Decodes the input to raw frames on one ffmpeg's stdout, dithers them in Java and pipes the
+     * result into a second ffmpeg that encodes (and, if requested, muxes audio from the original
+     * input). Nothing is written to disk except the output file, unless the video is split into
+     * segments (see {@link #setVideoSegments}). Up to {@link #getFrameWorkers()} frames are
+     * dithered at once and handed to the encoder in order.
+     */
+    private static boolean perFrameDither(String inputPath, String outputPath, int choice, double scale, boolean includeAudio, String audioCodec, int audioKbps, int fps, boolean temporal) throws IOException, InterruptedException {
+        // Scale frames (ensure even dims for libx264)
+        String scaleFilter = (scale > 0 && Math.abs(scale - 1.0) > 1e-6)
+                ? "scale=trunc(iw*" + scale + "/2)*2:trunc(ih*" + scale + "/2)*2:flags=lanczos"
+                : "scale=trunc(iw/2)*2:trunc(ih/2)*2:flags=lanczos";
+        String filter = "fps=" + fps + "," + scaleFilter;
+
+        List<String> extraInputs = new ArrayList<>();
+        List<String> outArgs = new ArrayList<>();
+        outArgs.add("-map"); outArgs.add("0:v:0");
+        if (includeAudio) {
+            // same settings compressAudio uses; '?' keeps inputs without audio working
+            extraInputs.add("-i"); extraInputs.add(inputPath);
+            outArgs.add("-map"); outArgs.add("1:a:0?");
+            outArgs.add("-c:a"); outArgs.add((audioCodec == null || audioCodec.isEmpty()) ? "aac" : audioCodec);
+            outArgs.add("-b:a"); outArgs.add((audioKbps > 0 ? audioKbps : 16) + "k");
+            outArgs.add("-ac"); outArgs.add("1");
+            outArgs.add("-ar"); outArgs.add("22050");
+        } else {
+            outArgs.add("-an");
+        }
 
-            List<String> gifCmd = new ArrayList<>();
-            gifCmd.add("ffmpeg"); gifCmd.add("-y"); gifCmd.add("-i"); gifCmd.add(inputPath); gifCmd.add("-i"); gifCmd.add("palette.png");
-            gifCmd.add("-lavfi"); gifCmd.add("fps=" + useFps + "," + scaleFilter + "[x];[x][1:v]paletteuse=dither=bayer");
-            gifCmd.add(out);
+        if (temporal && Dithering.colorPalette() != null) {
+            System.out.println("Temporal reuse only applies to black/white output; dithering every frame.");
+            temporal = false;
+        }
 
-            ProcessResult r2 = execute(gifCmd);
-            if (palette.exists()) palette.delete();
-            if (r2.exitCode != 0) {
-                System.err.println("ffmpeg gif generation failed (exit " + r2.exitCode + "). Output:\n" + r2.output);
+        int segments = videoSegments;
+        if (segments > 1) {
+            double duration = probeDuration(inputPath);
+            segments = (int) Math.min(segments, Math.floor(duration / MIN_SEGMENT_SECONDS));
+            if (segments > 1) {
+                return segmentedDither(inputPath, outputPath, filter, fps, duration, segments, extraInputs, outArgs,
+                        choice, temporal);
             }
-            return r2.exitCode == 0;
         }
 
-        // Non-GIF: perform per-frame extraction, apply Java dithering, then reassemble
-        return perFrameDither(inputPath, out, choice, scale, includeAudio, audioCodec, audioKbps, useFps);
+        outArgs.add("-c:v"); outArgs.add("libx264"); outArgs.add("-pix_fmt"); outArgs.add("yuv420p");
+        return ditherRange(inputPath, List.of(), filter, fps, 0, 0, extraInputs, outArgs, outputPath, choice, temporal,
+                getFrameWorkers());
     }
 
-    private static boolean perFrameDither(String inputPath, String outputPath, int choice, double scale, boolean includeAudio, String audioCodec, int audioKbps, int fps) throws IOException, InterruptedException {
-        Path tmpDir = Files.createTempDirectory("imager_frames_");
-        File tmp = tmpDir.toFile();
+    /**
+     * Cuts the video into segments ranges on the output frame grid, so range k starts at frame
+     * k * per and no frame is repeated or lost at a cut. Frame indices stay global, which keeps the
+     * random method's noise the same as dithering the video whole. Each range is encoded to a
+     * temp file, then the concat demuxer joins them with {@code -c:v copy} while the audio is
+     * muxed from the original input in the same pass.
+     *
+     * In temporal mode every range after the first also decodes the frame before its cut and
+     * primes its {@link TemporalDither} with it, so the first frame of a range re-dithers only the
+     * blocks that changed. That primed frame is dithered from scratch rather than carried over
+     * from the frames before it, so blocks that stay unchanged across a cut can differ from an
+     * unsegmented temporal run: by the noise of another frame with random, and by diffusion
+     * seams with error diffusion. The point-wise threshold, ordered and avoid-cluster methods
+     * give the same frames either way.
+     */
+    private static boolean segmentedDither(String inputPath, String outputPath, String filter, int fps, double duration,
+                                           int segments, List<String> extraInputs, List<String> outArgs,
+                                           int choice, boolean temporal) throws IOException, InterruptedException {
+        long total = (long) Math.ceil(duration * fps);
+        long per = (total + segments - 1) / segments;
+        int concurrent = Math.min(segments, Dithering.getParallelism());
+        int workers = Math.max(1, getFrameWorkers() / concurrent);
+        System.out.println("Dithering " + segments + " segments of " + per + " frames, " + concurrent + " at a time.");
+
+        Path dir = Files.createTempDirectory("imager-segments-");
+        ExecutorService pool = Executors.newFixedThreadPool(concurrent);
         try {
-            // Extract frames as PNG using fps and scaled dimensions (ensure even dims)
-            String scaleFilter = (scale > 0 && Math.abs(scale - 1.0) > 1e-6)
-                    ? "scale=trunc(iw*" + scale + "/2)*2:trunc(ih*" + scale + "/2)*2:flags=lanczos"
-                    : "scale=trunc(iw/2)*2:trunc(ih/2)*2:flags=lanczos";
-
-            String framePattern = new File(tmp, "frame_%06d.png").getAbsolutePath();
-            List<String> extract = new ArrayList<>();
-            extract.add("ffmpeg"); extract.add("-y"); extract.add("-i"); extract.add(inputPath);
-            extract.add("-vf"); extract.add("fps=" + fps + "," + scaleFilter);
-            extract.add("-vsync"); extract.add("0");
-            extract.add(framePattern);
-            ProcessResult rExtract = execute(extract);
-            if (rExtract.exitCode != 0) {
-                System.err.println("ffmpeg frame extraction failed (exit " + rExtract.exitCode + "):\n" + rExtract.output);
-                return false;
+            List<Future<Boolean>> results = new ArrayList<>();
+            List<String> list = new ArrayList<>();
+            for (int k = 0; k < segments; k++) {
+                int warmup = (temporal && k > 0) ? 1 : 0;
+                long first = k * per - warmup;
+                boolean last = (k == segments - 1);
+                List<String> seek = new ArrayList<>(List.of("-ss", seconds((double) first / fps)));
+                String rangeFilter = filter;
+                if (!last) {
+                    // the input is read a second past the cut and trim stops at exactly per frames
+                    seek.add("-t"); seek.add(seconds((double) (per + warmup) / fps + 1));
+                    rangeFilter += ",trim=end_frame=" + (per + warmup);
+                }
+                String segment = dir.resolve(String.format("segment%04d.mp4", k)).toString();
+                list.add("file '" + segment.replace("'", "'\\''") + "'");
+                List<String> args = List.of("-an", "-c:v", "libx264", "-pix_fmt", "yuv420p");
+                String fr = rangeFilter;
+                results.add(pool.submit(() -> ditherRange(inputPath, seek, fr, fps, (int) first, warmup, List.of(),
+                        args, segment, choice, temporal, workers)));
             }
-
-            // Load and process each frame
-            File[] frames = tmp.listFiles((d, n) -> n.toLowerCase().endsWith(".png"));
-            if (frames == null || frames.length == 0) {
-                System.err.println("No frames extracted for per-frame dithering.");
-                return false;
+            boolean ok = true;
+            for (Future<Boolean> r : results) {
+                try {
+                    ok &= r.get();
+                } catch (ExecutionException e) {
+                    System.err.println("Segment failed: " + e.getCause());
+                    ok = false;
+                }
+            }
+            if (!ok) return false;
+
+            Path listFile = dir.resolve("segments.txt");
+            Files.write(listFile, list);
+            List<String> cmd = new ArrayList<>(List.of("ffmpeg", "-y", "-f", "concat", "-safe", "0", "-i", listFile.toString()));
+            cmd.addAll(extraInputs);
+            cmd.addAll(outArgs);
+            cmd.add("-c:v"); cmd.add("copy");
+            cmd.add(outputPath);
+            ProcessResult r = execute(cmd);
+            if (r.exitCode != 0) {
+                System.err.println("ffmpeg concat failed (exit " + r.exitCode + "):\n" + r.output);
             }
-            Arrays.sort(frames);
-            for (int i = 0; i < frames.length; i++) {
-                File f = frames[i];
-                java.awt.image.BufferedImage img = Dithering.loadImage(f.getAbsolutePath());
-                java.awt.image.BufferedImage outImg;
-                switch (choice) {
-                    case 1 -> outImg = Dithering.threshold(img, 128);
-                    case 2 -> outImg = Dithering.randomDither(img);
-                    case 3 -> outImg = Dithering.orderedBayer(img);
-                    case 4 -> outImg = Dithering.orderedAvoidCluster(img);
-                    case 5 -> outImg = Dithering.floydSteinberg(img);
-                    default -> outImg = Dithering.floydSteinberg(img);
+            return r.exitCode == 0;
+        } finally {
+            pool.shutdownNow();
+            try (Stream<Path> files = Files.list(dir)) {
+                files.forEach(f -> f.toFile().delete());
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /** Container duration in seconds from ffprobe, or 0 when it cannot be read or ffprobe is missing. */
+    private static double probeDuration(String inputPath) throws InterruptedException {
+        ProcessResult r;
+        try {
+            r = execute(new ArrayList<>(Arrays.asList(
+                    "ffprobe", "-v", "error", "-show_entries", "format=duration",
+                    "-of", "default=noprint_wrappers=1:nokey=1", inputPath
+            )));
+        } catch (IOException e) {
+            // ffprobe is not on PATH
+            r = new ProcessResult(-1, "");
+        }
+        if (r.exitCode == 0) {
+            for (String line : r.output.split("\n")) {
+                try {
+                    double d = Double.parseDouble(line.trim());
+                    if (d > 0 && Double.isFinite(d)) return d;
+                } catch (NumberFormatException e) {
+                    // "N/A" for streams without a known length
                 }
-                javax.imageio.ImageIO.write(outImg, "PNG", f);
             }
+        }
+        System.out.println("Could not read the duration of " + inputPath + "; dithering it as one segment.");
+        return 0;
+    }
+
+    private static String seconds(double s) {
+        return String.format(Locale.ROOT, "%.6f", s);
+    }
 
-            // Assemble frames into a temporary video (no audio)
-            File videoNoAudio = new File(tmp, "video_noaudio.mp4");
-            List<String> assemble = new ArrayList<>();
-            assemble.add("ffmpeg"); assemble.add("-y"); assemble.add("-framerate"); assemble.add(String.valueOf(fps));
-            assemble.add("-i"); assemble.add(new File(tmp, "frame_%06d.png").getAbsolutePath());
-            assemble.add("-c:v"); assemble.add("libx264"); assemble.add("-pix_fmt"); assemble.add("yuv420p");
-            assemble.add(videoNoAudio.getAbsolutePath());
-            ProcessResult rAssemble = execute(assemble);
-            if (rAssemble.exitCode != 0) {
-                System.err.println("ffmpeg assemble failed (exit " + rAssemble.exitCode + "):\n" + rAssemble.output);
+    /**
+     * One decode -> dither -> encode chain: ffmpeg decodes input (with preInput before -i)
+     * through filter, frames are dithered on workers with indices from firstIndex, and the
+     * encoder writes output with the given inputs and arguments. In temporal mode the first
+     * warmup frames only prime the reuse state and are not encoded.
+     */
+    private static boolean ditherRange(String inputPath, List<String> preInput, String filter, int fps, int firstIndex,
+                                       int warmup,
+                                       List<String> extraInputs, List<String> outArgs, String outputPath,
+                                       int choice, boolean temporal, int workers) throws IOException, InterruptedException {
+        try (RawVideo.Decoder decoder = new RawVideo.Decoder(preInput, inputPath, filter);
+             RawVideo.Encoder encoder = new RawVideo.Encoder(decoder.width(), decoder.height(), fps, extraInputs, outArgs, outputPath)) {
+            // decode buffers go back here once dithered; the window bounds how many ever exist
+            BlockingQueue<java.awt.image.BufferedImage> free = new LinkedBlockingQueue<>();
+            int count;
+            try {
+                FramePipeline.Source<java.awt.image.BufferedImage> source = () -> {
+                    java.awt.image.BufferedImage buf = free.poll();
+                    if (buf == null) buf = decoder.newFrame();
+                    return decoder.read(buf) ? buf : null;
+                };
+                if (temporal) {
+                    // reuse needs the previous frame, so dithering happens in order on the sink
+                    TemporalDither reuse = new TemporalDither(choice, 128);
+                    count = FramePipeline.run("video", source,
+                            (i, frame) -> frame,
+                            (i, frame) -> {
+                                if (i < warmup) {
+                                    reuse.prime(frame, firstIndex + i);
+                                    free.offer(frame);
+                                    return;
+                                }
+                                java.awt.image.BufferedImage out = reuse.next(frame, firstIndex + i);
+                                free.offer(frame);
+                                reuse.printLastStats();
+                                encoder.write(out);
+                            },
+                            1, 4);
+                    if (count > 0) reuse.printSummary();
+                } else {
+                    count = FramePipeline.run("video", source,
+                            (i, frame) -> {
+                                java.awt.image.BufferedImage out = ditherFrame(frame, choice, firstIndex + i);
+                                free.offer(frame);
+                                return out;
+                            },
+                            (i, out) -> encoder.write(out),
+                            workers, workers * 2 + 2);
+                }
+            } catch (IOException e) {
+                // most likely the encoder exited early; its log says why
+                int rc = encoder.finish();
+                System.err.println("ffmpeg encode failed (exit " + rc + "): " + e.getMessage() + "\n" + encoder.log());
                 return false;
             }
 
-            if (!includeAudio) {
-                // Move/rename assembled video to outputPath
-                Files.move(videoNoAudio.toPath(), new File(outputPath).toPath());
-                return true;
+            int rcDecode = decoder.finish();
+            int rcEncode = encoder.finish();
+            if (rcDecode != 0) {
+                System.err.println("ffmpeg frame decode failed (exit " + rcDecode + "):\n" + decoder.log());
+                return false;
             }
-
-            // Extract/compress audio from original if needed
-            File audioFile = new File(tmp, "audio.m4a");
-            boolean audioOk = compressAudio(inputPath, audioFile.getAbsolutePath(), audioKbps > 0 ? audioKbps : 16, (audioCodec == null || audioCodec.isEmpty()) ? "aac" : audioCodec);
-            if (!audioOk) {
-                System.err.println("Audio compression/extraction failed; continuing without audio.");
-                Files.move(videoNoAudio.toPath(), new File(outputPath).toPath());
-                return true;
+            if (count == 0) {
+                System.err.println("No frames decoded for per-frame dithering.");
+                return false;
             }
-
-            // Mux audio and video
-            List<String> mux = new ArrayList<>();
-            mux.add("ffmpeg"); mux.add("-y"); mux.add("-i"); mux.add(videoNoAudio.getAbsolutePath()); mux.add("-i"); mux.add(audioFile.getAbsolutePath());
-            mux.add("-c:v"); mux.add("copy"); mux.add("-c:a"); mux.add("copy"); mux.add(outputPath);
-            ProcessResult rMux = execute(mux);
-            if (rMux.exitCode != 0) {
-                System.err.println("ffmpeg mux failed (exit " + rMux.exitCode + "):\n" + rMux.output);
+            if (rcEncode != 0) {
+                System.err.println("ffmpeg encode failed (exit " + rcEncode + "):\n" + encoder.log());
                 return false;
             }
-
             return true;
-        } finally {
-            // best-effort cleanup
-            try {
-                Files.walk(tmpDir).map(Path::toFile).sorted((a,b)->b.getName().compareTo(a.getName())).forEach(File::delete);
-            } catch (IOException e) {
-                // ignore
-            }
         }
     }
 }
@@ -0,0 +1,294 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Floyd-Steinberg error diffusion, serial or wavefront-parallel.
+ *
+ * Values are floats held in a small ring of padded row buffers filled with luminance just
+ * before they are needed, so working memory is a few rows wide rather than the whole image.
+ * Each pixel's error is split err * 7 / 16f, 3 / 16f, 5 / 16f and 1 / 16f and every cell
+ * receives its shares in the same order as in a plain loop over a float[h][w], so the sums
+ * (and therefore the output) are bit-identical to it. The table-driven kernels in
+ * {@link ErrorDiffusion} work in fixed point instead.
+ *
+ * The parallel path lets row y run while row y-1 is still in progress, as long as row y-1
+ * is at least {@link #LAG} pixels ahead. By then every contribution row y-1 makes to the
+ * pixel about to be read has already been added, in the same order as the serial loop, so
+ * the result matches it.
+ */
+final class FloydSteinberg {
+
+    /** Row y may process pixel x once row y-1 has finished pixels 0..x+2. */
+    private static final int LAG = 3;
+
+    /** How many pixels a row processes between progress updates. */
+    private static final int CHUNK = 64;
+
+    private FloydSteinberg() {
+    }
+
+    static BufferedImage dither(BufferedImage src, boolean serpentine) {
+        int w = src.getWidth(), h = src.getHeight();
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] out = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        LumaReader reader = LumaReader.of(src);
+
+        if (wavefrontFits(w, h, serpentine)) {
+            float[] first = new float[w + 2];
+            load(reader, 0, first, new int[w + 2], w);
+            wavefront((y, buf, lum) -> load(reader, y, buf, lum, w), out, w, 0, h, first, null);
+            return dst;
+        }
+
+        int[] lum = new int[w + 2];
+        float[] cur = new float[w + 2];
+        float[] next = new float[w + 2];
+        load(reader, 0, cur, lum, w);
+        for (int y = 0; y < h; y++) {
+            boolean last = (y + 1 == h);
+            if (!last) load(reader, y + 1, next, lum, w);
+            if (serpentine && (y & 1) == 1) {
+                spanRightToLeft(cur, last ? null : next, out, y * w, w);
+            } else {
+                span(cur, last ? null : next, out, y * w, 0, w);
+            }
+            float[] t = cur;
+            cur = next;
+            next = t;
+        }
+        return dst;
+    }
+
+    /**
+     * The serial loop fed one luminance row at a time, for producers that generate rows in
+     * order (see {@link FusedDither}). Output matches {@link #dither} with serpentine as given.
+     */
+    static final class Rows implements ErrorDiffusion.Sink {
+        private final int[] out;
+        private final int w;
+        private final int outRows;
+        private final boolean serpentine;
+        private float[] cur;
+        private float[] next;
+        private int y = -1; // rows received so far, minus one
+
+        /** Row y is written at {@code (y % outRows) * w} of out. */
+        Rows(int[] out, int w, int outRows, boolean serpentine) {
+            this.out = out;
+            this.w = w;
+            this.outRows = outRows;
+            this.serpentine = serpentine;
+            cur = new float[w + 2];
+            next = new float[w + 2];
+        }
+
+        /** Takes the next row's luminance; the row before it is diffused now that its successor is known. */
+        @Override
+        public void accept(int[] lum) {
+            fill((y < 0) ? cur : next, lum, 0, w);
+            if (y >= 0) {
+                diffuse(y, next);
+                float[] t = cur;
+                cur = next;
+                next = t;
+            }
+            y++;
+        }
+
+        /** Diffuses the last row. */
+        @Override
+        public void finish() {
+            if (y >= 0) diffuse(y, null);
+        }
+
+        private void diffuse(int row, float[] below) {
+            if (serpentine && (row & 1) == 1) {
+                spanRightToLeft(cur, below, out, (row % outRows) * w, w);
+            } else {
+                span(cur, below, out, (row % outRows) * w, 0, w);
+            }
+        }
+    }
+
+    /** Whether {@link #dither} takes the parallel wavefront for a w x h image. */
+    static boolean wavefrontFits(int w, int h, boolean serpentine) {
+        // A right-to-left row needs the whole row above it first, so serpentine cannot overlap rows.
+        return !serpentine && RowBands.isParallel(w, h) && w > LAG * 4;
+    }
+
+    /**
+     * The wavefront fed a block of luminance rows at a time, for producers that make rows in
+     * blocks (see {@link FusedDither}). A block's last row is held back, loaded and with the
+     * error from above added, until the next block arrives, so every cell is built up from its
+     * luminance in the same order as in {@link #dither} and output matches it without
+     * serpentine.
+     */
+    static final class Blocks {
+        private final int[] out;
+        private final int w;
+        private final int h;
+        private float[] held;
+        private float[] spare;
+        private int y;
+
+        Blocks(int[] out, int w, int h) {
+            this.out = out;
+            this.w = w;
+            this.h = h;
+            held = new float[w + 2];
+            spare = new float[w + 2];
+        }
+
+        /** Diffuses the next count rows, bar the last one unless it ends the image; rows[k] holds row y + k. */
+        void accept(int[][] rows, int count) {
+            int y0 = y, y1 = y0 + count;
+            if (y0 == 0) fill(held, rows[0], 0, w);
+            // diffuse from the row held back last time (or row 0) up to the one this block holds back
+            int from = (y0 == 0) ? 0 : y0 - 1;
+            int to = (y1 < h) ? y1 - 1 : y1;
+            if (from < to) {
+                float[] below = null;
+                if (y1 < h) {
+                    below = spare;
+                    fill(below, rows[count - 1], 0, w);
+                }
+                wavefront((row, buf, lum) -> fill(buf, rows[row - y0], 0, w), out, w, from, to, held, below);
+                if (below != null) {
+                    spare = held;
+                    held = below;
+                }
+            }
+            y = y1;
+        }
+    }
+
+    /** Fills buf[1..w] with the luminance of row y and clears the padding cells; lum is scratch of the same size. */
+    private static void load(LumaReader reader, int y, float[] buf, int[] lum, int w) {
+        reader.read(0, y, w, lum, 1);
+        fill(buf, lum, 1, w);
+    }
+
+    /** Copies lum[off .. off+w) into buf[1..w] and clears the padding cells. */
+    private static void fill(float[] buf, int[] lum, int off, int w) {
+        for (int x = 0; x < w; x++) {
+            buf[x + 1] = lum[off + x];
+        }
+        buf[0] = 0;
+        buf[w + 1] = 0;
+    }
+
+    /**
+     * Diffuses pixels [x0, x1) of one row left to right; next is null on the last row.
+     * Buffers are padded by one cell per side, so pixel x lives at index x + 1 and error
+     * pushed past either edge lands in padding and is dropped.
+     */
+    private static void span(float[] cur, float[] next, int[] out, int row, int x0, int x1) {
+        for (int x = x0; x < x1; x++) {
+            int i = x + 1;
+            float old = cur[i];
+            int newv = (old >= 128) ? 255 : 0;
+            float err = old - newv;
+            out[row + x] = (newv == 255) ? 0xFFFFFF : 0x000000;
+            cur[i + 1] += err * 7 / 16f;
+            if (next != null) {
+                next[i - 1] += err * 3 / 16f;
+                next[i] += err * 5 / 16f;
+                next[i + 1] += err * 1 / 16f;
+            }
+        }
+    }
+
+    private static void spanRightToLeft(float[] cur, float[] next, int[] out, int row, int w) {
+        for (int x = w - 1; x >= 0; x--) {
+            int i = x + 1;
+            float old = cur[i];
+            int newv = (old >= 128) ? 255 : 0;
+            float err = old - newv;
+            out[row + x] = (newv == 255) ? 0xFFFFFF : 0x000000;
+            cur[i - 1] += err * 7 / 16f;
+            if (next != null) {
+                next[i + 1] += err * 3 / 16f;
+                next[i] += err * 5 / 16f;
+                next[i - 1] += err * 1 / 16f;
+            }
+        }
+    }
+
+    /** Fills buf with row y the way {@link #load} does, using lum as scratch if it needs any. */
+    private interface Loader {
+        void load(int y, float[] buf, int[] lum);
+    }
+
+    /**
+     * Diffuses rows [y0, y1) with the wavefront. first holds row y0, loaded and with any error
+     * from above already added; below holds row y1, loaded, and receives the error pushed past
+     * row y1 - 1, or is null when that is the last row of the image.
+     */
+    private static void wavefront(Loader rows, int[] out, int w, int y0, int y1, float[] first, float[] below) {
+        int h = y1 - y0;
+        int workers = Math.min(RowBands.getParallelism(), h);
+        // Row y reads ring[y % n] and writes ring[(y + 1) % n]; with one spare slot per worker
+        // a slot is only reloaded after the row that last used it has finished.
+        int n = workers + 1;
+        float[][] ring = new float[n][];
+        ring[0] = first;
+        for (int i = 1; i < n; i++) {
+            ring[i] = new float[w + 2];
+        }
+        AtomicIntegerArray progress = new AtomicIntegerArray(h);
+        AtomicInteger nextRow = new AtomicInteger();
+
+        // Rows are claimed in order by threads that are already running, so the row a worker
+        // waits on always belongs to a live worker and the pipeline cannot stall.
+        Runnable worker = () -> {
+            int[] lum = new int[w + 2];
+            int y;
+            while ((y = nextRow.getAndIncrement()) < h) {
+                float[] cur = ring[y % n];
+                float[] next = below;
+                if (y + 1 < h) {
+                    next = ring[(y + 1) % n];
+                    if (y + 1 >= n) awaitProgress(progress, y + 1 - n, w);
+                    rows.load(y0 + y + 1, next, lum);
+                }
+                int row = (y0 + y) * w;
+                int ready = (y == 0) ? w : progress.getAcquire(y - 1);
+                for (int x0 = 0; x0 < w; x0 += CHUNK) {
+                    int x1 = Math.min(w, x0 + CHUNK);
+                    int need = Math.min(w, x1 - 1 + LAG);
+                    if (ready < need) ready = awaitProgress(progress, y - 1, need);
+                    span(cur, next, out, row, x0, x1);
+                    progress.setRelease(y, x1);
+                }
+            }
+        };
+
+        ForkJoinTask<?>[] helpers = new ForkJoinTask<?>[workers - 1];
+        for (int i = 0; i < helpers.length; i++) {
+            helpers[i] = RowBands.pool().submit(worker);
+        }
+        worker.run();
+        for (ForkJoinTask<?> t : helpers) {
+            t.join();
+        }
+    }
+
+    private static int awaitProgress(AtomicIntegerArray progress, int y, int need) {
+        int spins = 0;
+        int ready;
+        while ((ready = progress.getAcquire(y)) < need) {
+            if (++spins > 256) {
+                Thread.yield();
+                spins = 0;
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+        return ready;
+    }
+}
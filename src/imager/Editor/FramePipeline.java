@@ -0,0 +1,175 @@
+package imager.Editor;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Ordered, bounded producer -> workers -> consumer pipeline for animation and video frames.
+ *
+ * A source thread pulls items in order, {@code workers} threads (the caller plus
+ * {@code workers - 1} helpers) transform them concurrently, and a sink thread receives the
+ * results strictly in source order from a small reorder ring. A semaphore of {@code window}
+ * permits caps the items alive anywhere in the pipeline, which keeps memory flat and keeps
+ * ring slots from colliding. A failure in any stage stops the others and is rethrown.
+ */
+final class FramePipeline {
+
+    private static final long POLL_MS = 100;
+
+    interface Source<T> {
+        /** Next item in order, or null at the end. */
+        T next() throws Exception;
+    }
+
+    interface Stage<T, R> {
+        R apply(int index, T item) throws Exception;
+    }
+
+    interface Sink<R> {
+        void accept(int index, R item) throws Exception;
+    }
+
+    private record Item(int index, Object value) {
+    }
+
+    private static final Item END = new Item(-1, null);
+
+    private FramePipeline() {
+    }
+
+    /** Runs the pipeline to completion and returns the number of items processed. */
+    @SuppressWarnings("unchecked")
+    static <T, R> int run(String name, Source<T> source, Stage<T, R> stage, Sink<R> sink,
+                          int workers, int window) throws IOException {
+        if (workers < 1) throw new IllegalArgumentException("workers must be >= 1");
+        if (window < 1) throw new IllegalArgumentException("window must be >= 1");
+        Semaphore inFlight = new Semaphore(window);
+        BlockingQueue<Item> pending = new ArrayBlockingQueue<>(window + 1);
+        Item[] ring = new Item[window];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        int[] count = new int[1];
+
+        Thread reader = new Thread(() -> {
+            try {
+                int i = 0;
+                for (T item; ; i++) {
+                    acquire(inFlight, failure);
+                    if ((item = source.next()) == null) break;
+                    put(pending, new Item(i, item), failure);
+                }
+                count[0] = i;
+                offer(ring, new Item(i, END)); // end marker takes the slot after the last item
+                put(pending, END, failure);
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }, name + "-source");
+
+        Thread writer = new Thread(() -> {
+            try {
+                for (int next = 0; ; next++) {
+                    Item item = take(ring, next, failure);
+                    if (item.value() == END) break;
+                    sink.accept(next, (R) item.value());
+                    inFlight.release();
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }, name + "-sink");
+
+        Runnable worker = () -> {
+            try {
+                Item item;
+                while ((item = take(pending, failure)) != END) {
+                    R out = stage.apply(item.index(), (T) item.value());
+                    offer(ring, new Item(item.index(), out));
+                }
+                put(pending, END, failure); // let the other workers see it too
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        };
+
+        Thread[] helpers = new Thread[workers - 1];
+        for (int i = 0; i < helpers.length; i++) {
+            helpers[i] = new Thread(worker, name + "-worker-" + (i + 1));
+            helpers[i].setDaemon(true);
+        }
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+        for (Thread t : helpers) {
+            t.start();
+        }
+        worker.run();
+        for (Thread t : helpers) {
+            join(t, failure);
+        }
+        join(reader, failure);
+        join(writer, failure);
+
+        Throwable t = failure.get();
+        if (t instanceof IOException io) throw io;
+        if (t instanceof RuntimeException re) throw re;
+        if (t instanceof Error e) throw e;
+        if (t != null) throw new IOException(name + " pipeline failed", t);
+        return count[0];
+    }
+
+    private static void offer(Item[] ring, Item item) {
+        synchronized (ring) {
+            ring[item.index() % ring.length] = item;
+            ring.notifyAll();
+        }
+    }
+
+    private static Item take(Item[] ring, int index, AtomicReference<Throwable> failure) throws InterruptedException {
+        int slot = index % ring.length;
+        synchronized (ring) {
+            while (ring[slot] == null || ring[slot].index() != index) {
+                if (failure.get() != null) throw new InterruptedException("pipeline aborted");
+                ring.wait(POLL_MS);
+            }
+            Item item = ring[slot];
+            ring[slot] = null;
+            return item;
+        }
+    }
+
+    private static void acquire(Semaphore permits, AtomicReference<Throwable> failure) throws InterruptedException {
+        while (!permits.tryAcquire(POLL_MS, TimeUnit.MILLISECONDS)) {
+            if (failure.get() != null) throw new InterruptedException("pipeline aborted");
+        }
+    }
+
+    /** Blocking put that gives up once another stage has failed. */
+    private static <T> void put(BlockingQueue<T> queue, T item, AtomicReference<Throwable> failure) throws InterruptedException {
+        while (!queue.offer(item, POLL_MS, TimeUnit.MILLISECONDS)) {
+            if (failure.get() != null) throw new InterruptedException("pipeline aborted");
+        }
+    }
+
+    /** Blocking take that gives up once another stage has failed. */
+    private static <T> T take(BlockingQueue<T> queue, AtomicReference<Throwable> failure) throws InterruptedException {
+        T item;
+        while ((item = queue.poll(POLL_MS, TimeUnit.MILLISECONDS)) == null) {
+            if (failure.get() != null) throw new InterruptedException("pipeline aborted");
+        }
+        return item;
+    }
+
+    private static void join(Thread t, AtomicReference<Throwable> failure) {
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
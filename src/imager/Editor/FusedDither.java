@@ -0,0 +1,147 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Resize, luminance and black/white dithering in one pass over the source. The resampler
+ * hands over each output row as luminance and the row is dithered straight into the final
+ * image, so neither the resized RGB image nor a separate luminance plane is ever built.
+ *
+ * Output is identical to resizing with the same filter and then calling the matching
+ * {@link Dithering} method. The point-wise methods run in parallel bands, through
+ * {@link SimdKernels} where {@link Dithering} would use them. Error diffusion on a large enough
+ * image resamples a block of rows in parallel bands while the previous block is diffused
+ * (Floyd-Steinberg without serpentine with its wavefront); otherwise it consumes rows in order
+ * on the calling thread.
+ */
+final class FusedDither {
+
+    private static final int WHITE = 0xFFFFFF;
+    private static final int BLACK = 0x000000;
+
+    /** Rows per block of the parallel error diffusion path, per worker and in pixels at least. */
+    private static final int BLOCK_ROWS_PER_WORKER = 32;
+    private static final int MIN_BLOCK_PIXELS = 1 << 18;
+
+    private FusedDither() {
+    }
+
+    /**
+     * methodChoice is the menu number (1 threshold, 2 random, 3 ordered, 4 avoid-cluster,
+     * anything else error diffusion); map is used by 3 and 4, seed by 2 and 4, frame by 2,
+     * kernel and serpentine by error diffusion.
+     */
+    static BufferedImage dither(BufferedImage src, int dstW, int dstH, Resampler.Filter filter, int methodChoice,
+                                int threshold, ThresholdMap map, long seed, int frame,
+                                DiffusionKernel kernel, boolean serpentine) {
+        BufferedImage dst = new BufferedImage(dstW, dstH, BufferedImage.TYPE_INT_RGB);
+        int[] out = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        int[] table = map.table();
+        int mw = map.width();
+        boolean simd = Simd.enabled();
+        switch (methodChoice) {
+            case 1 -> Resampler.rows(src, dstW, dstH, filter, true, false, (y, lum) -> {
+                int row = y * dstW;
+                if (simd) {
+                    SimdKernels.threshold(lum, threshold, out, row, dstW);
+                    return;
+                }
+                for (int x = 0; x < dstW; x++) {
+                    out[row + x] = (lum[x] >= threshold) ? WHITE : BLACK;
+                }
+            });
+            case 2 -> {
+                long key = Noise.key(seed, frame);
+                Resampler.rows(src, dstW, dstH, filter, true, false, (y, lum) -> {
+                    int row = y * dstW;
+                    long counter = Noise.rowStart(key, y);
+                    for (int x = 0; x < dstW; x++, counter += Noise.GAMMA) {
+                        out[row + x] = (lum[x] >= Noise.level(counter)) ? WHITE : BLACK;
+                    }
+                });
+            }
+            case 3 -> {
+                // vector compares want the map row spread over the whole image row
+                int[] tiled = (simd && (long) map.height() * dstW <= Dithering.MAX_TILED) ? map.tiled(dstW) : null;
+                Resampler.rows(src, dstW, dstH, filter, true, false, (y, lum) -> {
+                    if (tiled != null) {
+                        SimdKernels.ordered(lum, tiled, (y % map.height()) * dstW, out, y * dstW, dstW);
+                        return;
+                    }
+                    int start = map.rowOffset(y), end = start + mw, t = start;
+                    int row = y * dstW;
+                    for (int x = 0; x < dstW; x++) {
+                        out[row + x] = (lum[x] >= table[t]) ? WHITE : BLACK;
+                        if (++t == end) t = start;
+                    }
+                });
+            }
+            case 4 -> {
+                long key = Noise.key(seed, 0);
+                Resampler.rows(src, dstW, dstH, filter, true, false, (y, lum) -> {
+                    int start = map.rowOffset(y), end = start + mw, i = start;
+                    int row = y * dstW;
+                    long counter = Noise.rowStart(key, y);
+                    for (int x = 0; x < dstW; x++, counter += Noise.GAMMA) {
+                        int t = Math.max(0, Math.min(255, table[i] + Noise.jitter(counter)));
+                        out[row + x] = (lum[x] >= t) ? WHITE : BLACK;
+                        if (++i == end) i = start;
+                    }
+                });
+            }
+            default -> {
+                if (RowBands.isParallel(dstW, dstH)) {
+                    diffuseInBlocks(src, dstW, dstH, filter, out, kernel, serpentine);
+                    break;
+                }
+                ErrorDiffusion.Sink diffusion = ErrorDiffusion.rows(out, dstW, kernel, serpentine);
+                Resampler.rows(src, dstW, dstH, filter, true, true, (y, lum) -> diffusion.accept(lum));
+                diffusion.finish();
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Error diffusion with the resize done in parallel: luminance rows are resampled a block at
+     * a time into one of two block buffers on the pool while the calling thread diffuses the
+     * block before, so at most two blocks of rows are held.
+     */
+    private static void diffuseInBlocks(BufferedImage src, int dstW, int dstH, Resampler.Filter filter, int[] out,
+                                        DiffusionKernel kernel, boolean serpentine) {
+        int block = Math.min(dstH,
+                Math.max(BLOCK_ROWS_PER_WORKER * RowBands.getParallelism(), MIN_BLOCK_PIXELS / dstW));
+        int[][][] buffers = new int[2][block][dstW];
+        FloydSteinberg.Blocks wavefront = (kernel == DiffusionKernel.FLOYD_STEINBERG
+                && FloydSteinberg.wavefrontFits(dstW, dstH, serpentine)) ? new FloydSteinberg.Blocks(out, dstW, dstH) : null;
+        ErrorDiffusion.Sink diffusion = (wavefront == null) ? ErrorDiffusion.rows(out, dstW, kernel, serpentine) : null;
+        resample(src, dstW, dstH, filter, 0, block, buffers[0]);
+        for (int y0 = 0, b = 0; y0 < dstH; y0 += block, b ^= 1) {
+            int y1 = Math.min(dstH, y0 + block);
+            int[][] rows = buffers[b], ahead = buffers[b ^ 1];
+            ForkJoinTask<?> next = null;
+            if (y1 < dstH) {
+                int end = Math.min(dstH, y1 + block);
+                next = RowBands.pool().submit(() -> resample(src, dstW, dstH, filter, y1, end, ahead));
+            }
+            if (wavefront != null) {
+                wavefront.accept(rows, y1 - y0);
+            } else {
+                for (int k = 0; k < y1 - y0; k++) {
+                    diffusion.accept(rows[k]);
+                }
+            }
+            if (next != null) next.join();
+        }
+        if (diffusion != null) diffusion.finish();
+    }
+
+    /** Resamples luminance rows [y0, y1) into rows[0 ..]. */
+    private static void resample(BufferedImage src, int dstW, int dstH, Resampler.Filter filter, int y0, int y1,
+                                 int[][] rows) {
+        Resampler.rows(src, dstW, dstH, filter, true, y0, y1,
+                (y, lum) -> System.arraycopy(lum, 0, rows[y - y0], 0, dstW));
+    }
+}
@@ -0,0 +1,398 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Incremental GIF decoder that composites every frame onto one canvas of the logical screen
+ * size, the way a viewer shows the animation.
+ *
+ * Each frame is drawn at its imageLeftPosition/imageTopPosition with transparent pixels leaving
+ * the canvas as it was, and the frame's disposal method is applied before the next one is
+ * drawn: "restore to background" clears its rectangle to the background color and "restore to
+ * previous" puts back what was under it. The background is the global color table entry named
+ * by the logical screen descriptor (black without a global table), which is also what the
+ * canvas starts as, since the output frames are opaque.
+ *
+ * The file is read front to back and decoded straight from palette indices, so the canvas,
+ * the index buffer and the LZW tables are the only allocations however long the animation is.
+ * A truncated last frame keeps the pixels decoded before the data ran out.
+ */
+final class GifDecoder implements AutoCloseable {
+
+    private static final int MAX_CODES = 4096;
+
+    private static final int DISPOSE_BACKGROUND = 2;
+    private static final int DISPOSE_PREVIOUS = 3;
+
+    private final InputStream in;
+    private int width, height;
+    private int[] canvas;
+    private final int[] globalColors;
+    private final int[] localColors = new int[256];
+    private final int background;
+
+    private byte[] indices = new byte[0];
+    private int[] saved = new int[0];
+
+    // LZW state
+    private final short[] prefix = new short[MAX_CODES];
+    private final byte[] suffix = new byte[MAX_CODES];
+    private final byte[] stack = new byte[MAX_CODES + 1];
+    private final byte[] block = new byte[255];
+    private int blockLen, blockPos;
+    private boolean blocksDone;
+
+    // graphic control extension of the next frame
+    private int gceDisposal, gceDelay = -1, gceTransparent = -1;
+
+    // the last frame drawn and its disposal, applied before the next frame
+    private int disposal, dx, dy, dw, dh;
+
+    private int delayCs;
+    private int frames;
+    private boolean ended;
+
+    GifDecoder(String path) throws IOException {
+        in = new BufferedInputStream(new FileInputStream(path), 1 << 16);
+        try {
+            byte[] sig = new byte[6];
+            readFully(sig, sig.length);
+            if (sig[0] != 'G' || sig[1] != 'I' || sig[2] != 'F') throw new IOException("not a GIF: " + path);
+            int w = readShort(), h = readShort();
+            int packed = readByte();
+            int bgIndex = readByte();
+            readByte(); // pixel aspect ratio
+            globalColors = ((packed & 0x80) != 0) ? readColors(new int[256], 2 << (packed & 7)) : null;
+            background = (globalColors != null) ? globalColors[bgIndex] : 0x000000;
+            width = w;
+            height = h;
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /** Canvas width; 0 before the first frame when the logical screen is 0x0. */
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    /** Delay of the current frame in hundredths of a second (10 when it has no graphic control extension). */
+    int delayCs() {
+        return delayCs;
+    }
+
+    /**
+     * Composites the next frame onto the canvas. Returns false at the trailer, at the end of
+     * the data after at least one frame, or at an unknown block.
+     */
+    boolean next() throws IOException {
+        if (ended) return false;
+        try {
+            while (true) {
+                int b = in.read();
+                switch (b) {
+                    case 0x21 -> readExtension();
+                    case 0x2C -> {
+                        readFrame();
+                        frames++;
+                        return true;
+                    }
+                    default -> {
+                        // 0x3B trailer, end of file or garbage after the last frame
+                        ended = true;
+                        return false;
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            ended = true;
+            if (frames == 0) throw e;
+            return false;
+        }
+    }
+
+    /**
+     * Copies the canvas into dst when it is a TYPE_INT_RGB image of the canvas size, otherwise
+     * into a new one, and returns it.
+     */
+    BufferedImage copyTo(BufferedImage dst) {
+        if (dst == null || dst.getType() != BufferedImage.TYPE_INT_RGB
+                || dst.getWidth() != width || dst.getHeight() != height) {
+            dst = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        int[] px = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        System.arraycopy(canvas, 0, px, 0, canvas.length);
+        return dst;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readExtension() throws IOException {
+        int label = readByte();
+        if (label == 0xF9) {
+            int size = readByte();
+            if (size >= 4) {
+                int packed = readByte();
+                gceDisposal = (packed >> 2) & 7;
+                gceDelay = readShort();
+                int t = readByte();
+                gceTransparent = ((packed & 1) != 0) ? t : -1;
+                skip(size - 4);
+            } else {
+                skip(size);
+            }
+        }
+        skipSubBlocks();
+    }
+
+    private void readFrame() throws IOException {
+        int fx = readShort(), fy = readShort(), fw = readShort(), fh = readShort();
+        int packed = readByte();
+        int[] colors = ((packed & 0x80) != 0) ? readColors(localColors, 2 << (packed & 7)) : globalColors;
+        if (colors == null) colors = localColors; // no table at all: indices read as black
+        boolean interlaced = (packed & 0x40) != 0;
+        if (canvas == null) {
+            // a few encoders leave the logical screen at 0x0; the first frame's extent is used then
+            if (width == 0 || height == 0) {
+                width = Math.max(1, fx + fw);
+                height = Math.max(1, fy + fh);
+            }
+            canvas = new int[width * height];
+            Arrays.fill(canvas, background);
+        }
+
+        // the previous frame is disposed of only now that it has been shown
+        if (disposal == DISPOSE_BACKGROUND) {
+            fill(dx, dy, dw, dh);
+        } else if (disposal == DISPOSE_PREVIOUS) {
+            restore(dx, dy, dw, dh);
+        }
+
+        // clip to the canvas
+        int x0 = Math.min(fx, width), y0 = Math.min(fy, height);
+        int x1 = Math.min(fx + fw, width), y1 = Math.min(fy + fh, height);
+        disposal = gceDisposal;
+        dx = x0;
+        dy = y0;
+        dw = x1 - x0;
+        dh = y1 - y0;
+        if (disposal == DISPOSE_PREVIOUS) save(dx, dy, dw, dh);
+
+        int n = fw * fh;
+        if (indices.length < n) indices = new byte[n];
+        int decoded = decode(indices, n);
+
+        int transparent = gceTransparent;
+        for (int r = 0, i = 0; r < fh && i < decoded; r++) {
+            int y = fy + (interlaced ? interlacedRow(r, fh) : r);
+            if (y >= height) {
+                i += fw;
+                continue;
+            }
+            int o = y * width;
+            for (int c = 0; c < fw && i < decoded; c++, i++) {
+                int idx = indices[i] & 0xFF;
+                int x = fx + c;
+                if (idx != transparent && x < width) canvas[o + x] = colors[idx];
+            }
+        }
+
+        delayCs = (gceDelay >= 0) ? gceDelay : 10;
+        // a graphic control extension applies to the one frame that follows it
+        gceDisposal = 0;
+        gceDelay = -1;
+        gceTransparent = -1;
+    }
+
+    /** Canvas row offset of the r-th row stored in an interlaced frame of h rows. */
+    private static int interlacedRow(int r, int h) {
+        int pass1 = (h + 7) / 8;
+        if (r < pass1) return r * 8;
+        r -= pass1;
+        int pass2 = (h + 3) / 8;
+        if (r < pass2) return r * 8 + 4;
+        r -= pass2;
+        int pass3 = (h + 1) / 4;
+        if (r < pass3) return r * 4 + 2;
+        return (r - pass3) * 2 + 1;
+    }
+
+    private void fill(int x, int y, int w, int h) {
+        for (int r = 0; r < h; r++) {
+            int o = (y + r) * width + x;
+            Arrays.fill(canvas, o, o + w, background);
+        }
+    }
+
+    private void save(int x, int y, int w, int h) {
+        if (saved.length < w * h) saved = new int[w * h];
+        for (int r = 0; r < h; r++) {
+            System.arraycopy(canvas, (y + r) * width + x, saved, r * w, w);
+        }
+    }
+
+    private void restore(int x, int y, int w, int h) {
+        for (int r = 0; r < h; r++) {
+            System.arraycopy(saved, r * w, canvas, (y + r) * width + x, w);
+        }
+    }
+
+    /** LZW-decodes one frame's image data into out; returns the number of pixels decoded. */
+    private int decode(byte[] out, int n) throws IOException {
+        int minSize = readByte();
+        if (minSize < 1 || minSize > 11) throw new IOException("bad LZW code size " + minSize);
+        int clear = 1 << minSize, eoi = clear + 1;
+        for (int i = 0; i < clear; i++) {
+            prefix[i] = -1;
+            suffix[i] = (byte) i;
+        }
+        int codeSize = minSize + 1, codeMask = (1 << codeSize) - 1;
+        int avail = clear + 2, oldCode = -1, first = 0;
+        int datum = 0, bits = 0, top = 0, pi = 0;
+        blockLen = blockPos = 0;
+        blocksDone = false;
+
+        while (pi < n) {
+            if (top == 0) {
+                while (bits < codeSize) {
+                    int b = nextDataByte();
+                    if (b < 0) return finishData(pi);
+                    datum |= b << bits;
+                    bits += 8;
+                }
+                int code = datum & codeMask;
+                datum >>>= codeSize;
+                bits -= codeSize;
+                if (code == clear) {
+                    codeSize = minSize + 1;
+                    codeMask = (1 << codeSize) - 1;
+                    avail = clear + 2;
+                    oldCode = -1;
+                    continue;
+                }
+                if (code == eoi || code > avail || (oldCode == -1 && code >= clear)) break;
+                if (oldCode == -1) {
+                    out[pi++] = suffix[code];
+                    oldCode = first = code;
+                    continue;
+                }
+                int inCode = code;
+                if (code == avail) {
+                    stack[top++] = (byte) first;
+                    code = oldCode;
+                }
+                while (code >= clear) {
+                    stack[top++] = suffix[code];
+                    code = prefix[code];
+                }
+                first = suffix[code] & 0xFF;
+                stack[top++] = (byte) first;
+                if (avail < MAX_CODES) {
+                    prefix[avail] = (short) oldCode;
+                    suffix[avail] = (byte) first;
+                    avail++;
+                    if ((avail & codeMask) == 0 && avail < MAX_CODES) {
+                        codeSize++;
+                        codeMask = (1 << codeSize) - 1;
+                    }
+                }
+                oldCode = inCode;
+            }
+            out[pi++] = stack[--top];
+        }
+        return finishData(pi);
+    }
+
+    /** Skips whatever is left of the image data sub-blocks. */
+    private int finishData(int decoded) throws IOException {
+        if (!blocksDone) {
+            skipSubBlocks();
+            blocksDone = true;
+        }
+        return decoded;
+    }
+
+    private int nextDataByte() throws IOException {
+        if (blockPos == blockLen) {
+            if (blocksDone) return -1;
+            int len = in.read();
+            blockPos = 0;
+            blockLen = 0;
+            if (len <= 0) {
+                blocksDone = true;
+                return -1;
+            }
+            // a short read means the file is cut off: decode what is there and stop after this frame
+            while (blockLen < len) {
+                int r = in.read(block, blockLen, len - blockLen);
+                if (r < 0) {
+                    blocksDone = true;
+                    break;
+                }
+                blockLen += r;
+            }
+            if (blockLen == 0) return -1;
+        }
+        return block[blockPos++] & 0xFF;
+    }
+
+    private int[] readColors(int[] table, int count) throws IOException {
+        byte[] rgb = new byte[count * 3];
+        readFully(rgb, rgb.length);
+        Arrays.fill(table, 0);
+        for (int i = 0; i < count; i++) {
+            table[i] = ((rgb[i * 3] & 0xFF) << 16) | ((rgb[i * 3 + 1] & 0xFF) << 8) | (rgb[i * 3 + 2] & 0xFF);
+        }
+        return table;
+    }
+
+    private void skipSubBlocks() throws IOException {
+        int len;
+        while ((len = readByte()) != 0) skip(len);
+    }
+
+    private void skip(int n) throws IOException {
+        while (n > 0) {
+            long s = in.skip(n);
+            if (s <= 0) {
+                readByte();
+                s = 1;
+            }
+            n -= (int) s;
+        }
+    }
+
+    private void readFully(byte[] buf, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int r = in.read(buf, off, len - off);
+            if (r < 0) throw new EOFException();
+            off += r;
+        }
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) throw new EOFException();
+        return b;
+    }
+
+    private int readShort() throws IOException {
+        return readByte() | (readByte() << 8);
+    }
+}
@@ -0,0 +1,15 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+/** Frame-at-a-time animated GIF output, implemented by {@link GifSequenceWriter} and {@link BilevelGifWriter}. */
+interface GifFrameWriter extends Closeable {
+
+    void writeFrame(BufferedImage img, int delayCs) throws IOException;
+
+    static GifFrameWriter open(String outPath, int loopCount, boolean bilevel) throws IOException {
+        return bilevel ? new BilevelGifWriter(outPath, loopCount) : new GifSequenceWriter(outPath, loopCount);
+    }
+}
@@ -0,0 +1,93 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Streaming decode -> dither -> encode for animated GIFs, built on {@link FramePipeline}:
+ * frames are decoded one at a time, dithered on several workers at once and written back
+ * in their original order, so memory does not grow with the animation length and output is
+ * written while the input is still being decoded. In temporal mode unchanged blocks are
+ * copied from the previous output instead of being dithered again (see {@link TemporalDither}).
+ */
+final class GifPipeline {
+
+    /** Frames allowed in flight beyond two per worker. */
+    static final int QUEUE_FRAMES = 4;
+
+    record Frame(BufferedImage image, int delayCs) {
+    }
+
+    private GifPipeline() {
+    }
+
+    static void run(String inputPath, String outPath, int methodChoice, double scale, int workers,
+                    boolean temporal, boolean bilevel) throws IOException {
+        try (FrameSource source = new FrameSource(inputPath);
+             GifFrameWriter writer = GifFrameWriter.open(outPath, 0, bilevel)) {
+            int frames;
+            int window = workers * 2 + QUEUE_FRAMES;
+            if (temporal) {
+                // workers only resize; reuse needs the previous frame, so dithering happens in order
+                TemporalDither reuse = new TemporalDither(methodChoice, 128);
+                frames = FramePipeline.run("gif", source,
+                        (i, f) -> {
+                            if (scale == 1.0) return f;
+                            BufferedImage resized = Dithering.resize(f.image(), scale);
+                            source.recycle(f.image());
+                            return new Frame(resized, f.delayCs());
+                        },
+                        (i, f) -> {
+                            BufferedImage out = reuse.next(f.image(), i);
+                            if (scale == 1.0) source.recycle(f.image());
+                            reuse.printLastStats();
+                            writer.writeFrame(out, f.delayCs());
+                        },
+                        workers, window);
+                if (frames > 0) reuse.printSummary();
+            } else {
+                frames = FramePipeline.run("gif", source,
+                        (i, f) -> {
+                            BufferedImage out = Dithering.processFrame(f.image(), methodChoice, scale, i);
+                            source.recycle(f.image());
+                            return new Frame(out, f.delayCs());
+                        },
+                        (i, f) -> writer.writeFrame(f.image(), f.delayCs()),
+                        workers, window);
+            }
+            if (frames == 0) throw new IOException("No frames in " + inputPath);
+        }
+        System.out.println("Saved animated GIF: " + outPath);
+    }
+
+    /**
+     * Hands out every frame composited onto the full canvas by {@link GifDecoder}. Frames are
+     * copied into recycled canvas-sized images: the pipeline window bounds how many are out at
+     * once, and {@link #recycle} puts one back once nothing reads it any more.
+     */
+    private static final class FrameSource implements FramePipeline.Source<Frame>, AutoCloseable {
+        private final GifDecoder decoder;
+        private final Queue<BufferedImage> free = new ConcurrentLinkedQueue<>();
+
+        FrameSource(String path) throws IOException {
+            decoder = new GifDecoder(path);
+        }
+
+        @Override
+        public Frame next() throws IOException {
+            if (!decoder.next()) return null;
+            return new Frame(decoder.copyTo(free.poll()), decoder.delayCs());
+        }
+
+        void recycle(BufferedImage img) {
+            free.add(img);
+        }
+
+        @Override
+        public void close() throws IOException {
+            decoder.close();
+        }
+    }
+}
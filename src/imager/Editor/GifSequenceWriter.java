@@ -0,0 +1,99 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes an animated GIF one frame at a time through the ImageIO GIF writer, so callers
+ * do not need to hold the whole animation in memory.
+ */
+public class GifSequenceWriter implements GifFrameWriter {
+
+    private final ImageWriter writer;
+    private final ImageOutputStream output;
+    private final ImageWriteParam params;
+
+    public GifSequenceWriter(String outPath, int loopCount) throws IOException {
+        writer = ImageIO.getImageWritersBySuffix("gif").next();
+        output = ImageIO.createImageOutputStream(new File(outPath));
+        writer.setOutput(output);
+        params = writer.getDefaultWriteParam();
+
+        IIOMetadata streamMeta = writer.getDefaultStreamMetadata(params);
+        if (streamMeta != null) {
+            String streamFormat = streamMeta.getNativeMetadataFormatName();
+            IIOMetadataNode streamRoot = new IIOMetadataNode(streamFormat);
+            IIOMetadataNode appExtensions = new IIOMetadataNode("ApplicationExtensions");
+            IIOMetadataNode appNode = new IIOMetadataNode("ApplicationExtension");
+            appNode.setAttribute("applicationID", "NETSCAPE");
+            appNode.setAttribute("authenticationCode", "2.0");
+            int loop = (loopCount < 0) ? 0 : loopCount;
+            byte[] loopBytesStream = new byte[]{1, (byte) (loop & 0xFF), (byte) ((loop >> 8) & 0xFF)};
+            appNode.setUserObject(loopBytesStream);
+            appExtensions.appendChild(appNode);
+            streamRoot.appendChild(appExtensions);
+            try {
+                streamMeta.mergeTree(streamFormat, streamRoot);
+            } catch (Exception ex) {
+                // ignore
+            }
+        }
+
+        // start sequence with stream metadata
+        writer.prepareWriteSequence(streamMeta);
+    }
+
+    @Override
+    public void writeFrame(BufferedImage img, int delayCs) throws IOException {
+        IIOMetadata frameMeta = writer.getDefaultImageMetadata(
+                ImageTypeSpecifier.createFromRenderedImage(img), params);
+
+        IIOMetadataNode gce = new IIOMetadataNode("GraphicControlExtension");
+        gce.setAttribute("disposalMethod", "none"); // or "restoreToBackground"
+        gce.setAttribute("userInputFlag", "FALSE");
+        gce.setAttribute("transparentColorFlag", "FALSE");
+        gce.setAttribute("delayTime", String.valueOf(delayCs));
+        gce.setAttribute("transparentColorIndex", "0");
+
+        IIOMetadataNode frameRoot = new IIOMetadataNode(frameMeta.getNativeMetadataFormatName());
+        frameRoot.appendChild(gce);
+
+        // Image descriptor (position + size)
+        IIOMetadataNode imgDesc = new IIOMetadataNode("ImageDescriptor");
+        imgDesc.setAttribute("imageLeftPosition", "0");
+        imgDesc.setAttribute("imageTopPosition", "0");
+        imgDesc.setAttribute("imageWidth", String.valueOf(img.getWidth()));
+        imgDesc.setAttribute("imageHeight", String.valueOf(img.getHeight()));
+        frameRoot.appendChild(imgDesc);
+
+        try {
+            frameMeta.mergeTree(frameMeta.getNativeMetadataFormatName(), frameRoot);
+        } catch (IIOInvalidTreeException e) {
+            // ignore
+        }
+
+        IIOImage iioImage = new IIOImage(img, null, frameMeta);
+        writer.writeToSequence(iioImage, params);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.endWriteSequence();
+        } finally {
+            output.close();
+            writer.dispose();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Reads luminance straight out of a BufferedImage's raster, one row segment at a time.
+ * INT_RGB/INT_ARGB, 3BYTE_BGR and BYTE_GRAY get dedicated paths; anything else goes
+ * through a bulk getRGB. Readers hold no mutable state, so one instance can be shared
+ * between threads as long as each thread uses its own row buffer.
+ */
+abstract class LumaReader {
+
+    protected final int width;
+    protected final int height;
+
+    protected LumaReader(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /** Fills lum[off .. off+len) with the luminance of pixels (x .. x+len, y). */
+    abstract void read(int x, int y, int len, int[] lum, int off);
+
+    void readRow(int y, int[] lum) {
+        read(0, y, width, lum, 0);
+    }
+
+    static LumaReader of(BufferedImage src) {
+        Raster raster = src.getRaster();
+        switch (src.getType()) {
+            case BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB -> {
+                if (raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                        && raster.getDataBuffer() instanceof DataBufferInt) {
+                    return new PackedInt(raster);
+                }
+            }
+            case BufferedImage.TYPE_3BYTE_BGR -> {
+                if (raster.getSampleModel() instanceof ComponentSampleModel
+                        && raster.getDataBuffer() instanceof DataBufferByte) {
+                    return new InterleavedBgr(raster);
+                }
+            }
+            case BufferedImage.TYPE_BYTE_GRAY -> {
+                if (raster.getSampleModel() instanceof ComponentSampleModel
+                        && raster.getDataBuffer() instanceof DataBufferByte) {
+                    return new Gray(src, raster);
+                }
+            }
+            default -> {
+            }
+        }
+        return new Generic(src);
+    }
+
+    /**
+     * Integer form of (int) (0.2126 * r + 0.7152 * g + 0.0722 * b). The double sum can land a
+     * hair under an exact integer, so those few inputs fall back to the double expression.
+     */
+    static int luminance(int r, int g, int b) {
+        int s = 2126 * r + 7152 * g + 722 * b;
+        int q = s / 10000;
+        if (s - q * 10000 != 0) return q;
+        return (int) (0.2126 * r + 0.7152 * g + 0.0722 * b);
+    }
+
+    static int luminance(int rgb) {
+        return luminance((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+    }
+
+    private static final class PackedInt extends LumaReader {
+        private final int[] data;
+        private final int base;
+        private final int stride;
+
+        PackedInt(Raster raster) {
+            super(raster.getWidth(), raster.getHeight());
+            SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            DataBufferInt db = (DataBufferInt) raster.getDataBuffer();
+            this.data = db.getData();
+            this.stride = sm.getScanlineStride();
+            this.base = db.getOffset()
+                    - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX();
+        }
+
+        @Override
+        void read(int x, int y, int len, int[] lum, int off) {
+            int p = base + y * stride + x;
+            if (Simd.enabled()) {
+                SimdKernels.luminance(data, p, lum, off, len);
+                return;
+            }
+            for (int i = 0; i < len; i++) {
+                int rgb = data[p + i];
+                lum[off + i] = luminance((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+            }
+        }
+    }
+
+    private static final class InterleavedBgr extends LumaReader {
+        private final byte[] data;
+        private final int base;
+        private final int stride;
+        private final int pixelStride;
+        private final int rOff, gOff, bOff;
+
+        InterleavedBgr(Raster raster) {
+            super(raster.getWidth(), raster.getHeight());
+            ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte db = (DataBufferByte) raster.getDataBuffer();
+            int[] bands = sm.getBandOffsets();
+            this.data = db.getData();
+            this.stride = sm.getScanlineStride();
+            this.pixelStride = sm.getPixelStride();
+            this.rOff = bands[0];
+            this.gOff = bands[1];
+            this.bOff = bands[2];
+            this.base = db.getOffset()
+                    - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX() * pixelStride;
+        }
+
+        @Override
+        void read(int x, int y, int len, int[] lum, int off) {
+            int p = base + y * stride + x * pixelStride;
+            for (int i = 0; i < len; i++, p += pixelStride) {
+                lum[off + i] = luminance(data[p + rOff] & 0xFF, data[p + gOff] & 0xFF, data[p + bOff] & 0xFF);
+            }
+        }
+    }
+
+    private static final class Gray extends LumaReader {
+        private final byte[] data;
+        private final int base;
+        private final int stride;
+        private final int pixelStride;
+        private final int[] lut = new int[256];
+
+        Gray(BufferedImage src, Raster raster) {
+            super(raster.getWidth(), raster.getHeight());
+            ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte db = (DataBufferByte) raster.getDataBuffer();
+            this.data = db.getData();
+            this.stride = sm.getScanlineStride();
+            this.pixelStride = sm.getPixelStride();
+            this.base = db.getOffset() + sm.getBandOffsets()[0]
+                    - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX() * pixelStride;
+            // gray -> sRGB goes through the color model (linear gray), so take it from there once
+            byte[] px = new byte[1];
+            for (int v = 0; v < 256; v++) {
+                px[0] = (byte) v;
+                lut[v] = luminance(src.getColorModel().getRGB(px));
+            }
+        }
+
+        @Override
+        void read(int x, int y, int len, int[] lum, int off) {
+            int p = base + y * stride + x * pixelStride;
+            for (int i = 0; i < len; i++, p += pixelStride) {
+                lum[off + i] = lut[data[p] & 0xFF];
+            }
+        }
+    }
+
+    private static final class Generic extends LumaReader {
+        private final BufferedImage src;
+
+        Generic(BufferedImage src) {
+            super(src.getWidth(), src.getHeight());
+            this.src = src;
+        }
+
+        @Override
+        void read(int x, int y, int len, int[] lum, int off) {
+            src.getRGB(x, y, len, 1, lum, off, len);
+            for (int i = off; i < off + len; i++) {
+                lum[i] = luminance(lum[i]);
+            }
+        }
+    }
+}
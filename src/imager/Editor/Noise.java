@@ -0,0 +1,51 @@
+package imager.Editor;
+
+/**
+ * Counter-based noise for the random and avoid-cluster methods: every value is a hash of
+ * (seed, frame, x, y), so a pixel's noise does not depend on which pixels were drawn before
+ * it. Rows, bands and tiles can be dithered in any order, on any thread, with the same result.
+ *
+ * The hash is SplitMix64's: the key plus the pixel's position times the golden-ratio gamma,
+ * finished with the Murmur3 64-bit mixer. Walking along a row only adds the gamma each step.
+ */
+final class Noise {
+
+    static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    private Noise() {
+    }
+
+    /** Key for one frame of one seed; all pixels of the frame are hashed against it. */
+    static long key(long seed, int frame) {
+        return mix(mix(seed) + frame * GAMMA);
+    }
+
+    /** Counter of pixel (0, y); pixel (x, y) is {@code rowStart(key, y) + x * GAMMA}. */
+    static long rowStart(long key, int y) {
+        return key + ((long) y << 32) * GAMMA;
+    }
+
+    static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    /** Uniform 0-255 from a counter: the random method's threshold. */
+    static int level(long counter) {
+        return (int) (mix(counter) >>> 56);
+    }
+
+    /** Uniform -16..16 from a counter: avoid-cluster's threshold jitter. */
+    static int jitter(long counter) {
+        return (int) (((mix(counter) >>> 32) * 33) >>> 32) - 16;
+    }
+
+    static int level(long key, int x, int y) {
+        return level(rowStart(key, y) + x * GAMMA);
+    }
+
+    static int jitter(long key, int x, int y) {
+        return jitter(rowStart(key, y) + x * GAMMA);
+    }
+}
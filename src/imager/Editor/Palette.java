@@ -0,0 +1,234 @@
+package imager.Editor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A fixed output palette of 2 to 256 RGB colors for color dithering.
+ *
+ * Nearest-color search (squared RGB distance) goes through a 3D lookup table of 64x64x64
+ * cells (6 bits per channel) built once per palette. Each cell lists the colors that can be
+ * nearest to some point inside it; most cells have exactly one, which answers the lookup in a
+ * single array read, and the rest are settled by an exact scan of their few candidates, so
+ * the answer is always the true nearest color, ties going to the lower index.
+ */
+public final class Palette {
+
+    public static final int MIN_COLORS = 2;
+    public static final int MAX_COLORS = 256;
+
+    private static final int BITS = 6;
+    private static final int CELLS = 1 << BITS;
+    private static final int SHIFT = 8 - BITS;
+
+    /** Black and white, the output of the original methods. */
+    public static final Palette BLACK_WHITE = new Palette(new int[]{0x000000, 0xFFFFFF});
+
+    // "#1a2b3c" / "1A2B3C" or "26 43 60 name" (GIMP .gpl rows)
+    private static final Pattern HEX = Pattern.compile("#?([0-9a-fA-F]{6})\\b.*");
+    private static final Pattern DECIMAL = Pattern.compile("(\\d{1,3})\\s+(\\d{1,3})\\s+(\\d{1,3})\\b.*");
+
+    private final int[] colors;
+    private volatile Lut lut;
+
+    private Palette(int[] colors) {
+        if (colors.length < MIN_COLORS || colors.length > MAX_COLORS) {
+            throw new IllegalArgumentException("palette needs " + MIN_COLORS + "-" + MAX_COLORS
+                    + " colors, got " + colors.length);
+        }
+        this.colors = colors;
+    }
+
+    /** Palette of the given 0xRRGGBB colors (alpha is ignored). */
+    public static Palette of(int... rgb) {
+        int[] c = new int[rgb.length];
+        for (int i = 0; i < rgb.length; i++) {
+            c[i] = rgb[i] & 0xFFFFFF;
+        }
+        return new Palette(c);
+    }
+
+    /**
+     * Reads a palette file: one color per line, either hex ({@code #RRGGBB} or {@code RRGGBB})
+     * or three decimal components as in GIMP .gpl files. Other lines are skipped.
+     */
+    public static Palette load(String path) throws IOException {
+        List<Integer> found = new ArrayList<>();
+        for (String line : Files.readAllLines(Path.of(path))) {
+            String s = line.trim();
+            Matcher m = HEX.matcher(s);
+            if (m.matches()) {
+                found.add(Integer.parseInt(m.group(1), 16));
+                continue;
+            }
+            m = DECIMAL.matcher(s);
+            if (m.matches()) {
+                int r = Integer.parseInt(m.group(1)), g = Integer.parseInt(m.group(2)), b = Integer.parseInt(m.group(3));
+                if (r > 255 || g > 255 || b > 255) throw new IOException("Bad color in " + path + ": " + line);
+                found.add((r << 16) | (g << 8) | b);
+            }
+        }
+        if (found.size() < MIN_COLORS || found.size() > MAX_COLORS) {
+            throw new IOException(path + " has " + found.size() + " colors, expected "
+                    + MIN_COLORS + "-" + MAX_COLORS);
+        }
+        return of(found.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    public int size() {
+        return colors.length;
+    }
+
+    /** Color at index i as 0xRRGGBB. */
+    public int color(int i) {
+        return colors[i];
+    }
+
+    public int[] colors() {
+        return colors.clone();
+    }
+
+    /** Index of the palette color nearest to (r, g, b); components must be 0-255. */
+    public int nearest(int r, int g, int b) {
+        Lut t = lut();
+        int v = t.cells[((r >> SHIFT) << (2 * BITS)) | ((g >> SHIFT) << BITS) | (b >> SHIFT)];
+        if (v < 0) return ~v;
+        byte[] cand = t.candidates;
+        int end = v + (cand[v] & 0xFF) + 3;
+        int best = 0, bestD = Integer.MAX_VALUE;
+        for (int k = v + 1; k < end; k++) {
+            int i = cand[k] & 0xFF, c = colors[i];
+            int dr = r - (c >> 16), dg = g - ((c >> 8) & 0xFF), db = b - (c & 0xFF);
+            int d = dr * dr + dg * dg + db * db;
+            if (d < bestD) {
+                bestD = d;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Per cell, either ~index of the only color that can be nearest anywhere in the cell, or the
+     * offset of a run in candidates: the count minus 2, then the candidate indices in increasing
+     * order, so ties go to the lowest index as in a full scan.
+     */
+    record Lut(int[] cells, byte[] candidates) {
+    }
+
+    Lut lut() {
+        Lut t = lut;
+        if (t == null) {
+            synchronized (this) {
+                if ((t = lut) == null) lut = t = buildLut();
+            }
+        }
+        return t;
+    }
+
+    private Lut buildLut() {
+        int[] cells = new int[CELLS * CELLS * CELLS];
+        int n = colors.length;
+        int[] pr = new int[n], pg = new int[n], pb = new int[n];
+        for (int i = 0; i < n; i++) {
+            pr[i] = colors[i] >> 16;
+            pg[i] = (colors[i] >> 8) & 0xFF;
+            pb[i] = colors[i] & 0xFF;
+        }
+        // a repeated color never beats its first occurrence, so it is never a candidate
+        boolean[] repeated = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < i && !repeated[i]; j++) repeated[i] = colors[j] == colors[i];
+        }
+        byte[][] slabs = new byte[CELLS][];
+        int[] slabLength = new int[CELLS];
+        // one "row" per red cell, CELLS * CELLS cells each; runs go to a buffer per red cell
+        RowBands.run(CELLS * CELLS, CELLS, (r0, r1) -> {
+            boolean[] closer = new boolean[n];
+            for (int ri = r0; ri < r1; ri++) {
+                byte[] buf = new byte[CELLS * CELLS];
+                int len = 0;
+                int rLo = ri << SHIFT, rHi = rLo + (1 << SHIFT) - 1;
+                for (int gi = 0; gi < CELLS; gi++) {
+                    int gLo = gi << SHIFT, gHi = gLo + (1 << SHIFT) - 1;
+                    int base = (ri << (2 * BITS)) | (gi << BITS);
+                    for (int bi = 0; bi < CELLS; bi++) {
+                        int bLo = bi << SHIFT, bHi = bLo + (1 << SHIFT) - 1;
+                        // pivot on the color nearest the cell center; any other color can only be
+                        // nearest somewhere in the cell if it is no farther than the pivot there
+                        int pivot = 0, pivotD = Integer.MAX_VALUE;
+                        for (int i = 0; i < n; i++) {
+                            int dr = 2 * pr[i] - rLo - rHi, dg = 2 * pg[i] - gLo - gHi, db = 2 * pb[i] - bLo - bHi;
+                            int d = dr * dr + dg * dg + db * db;
+                            if (d < pivotD) {
+                                pivotD = d;
+                                pivot = i;
+                            }
+                        }
+                        int count = 0, only = 0;
+                        for (int i = 0; i < n; i++) {
+                            closer[i] = !repeated[i] && closerSomewhere(pr[i], pr[pivot], rLo, rHi)
+                                    + closerSomewhere(pg[i], pg[pivot], gLo, gHi)
+                                    + closerSomewhere(pb[i], pb[pivot], bLo, bHi) <= 0;
+                            if (closer[i]) {
+                                count++;
+                                only = i;
+                            }
+                        }
+                        if (count == 1) {
+                            cells[base | bi] = ~only;
+                            continue;
+                        }
+                        if (len + count + 1 > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + count + 1));
+                        cells[base | bi] = len;
+                        buf[len++] = (byte) (count - 2);
+                        for (int i = 0; i < n; i++) {
+                            if (closer[i]) buf[len++] = (byte) i;
+                        }
+                    }
+                }
+                slabs[ri] = buf;
+                slabLength[ri] = len;
+            }
+        });
+        int total = 0;
+        for (int len : slabLength) total += len;
+        byte[] candidates = new byte[total];
+        int offset = 0;
+        for (int ri = 0; ri < CELLS; ri++) {
+            System.arraycopy(slabs[ri], 0, candidates, offset, slabLength[ri]);
+            int from = ri << (2 * BITS), to = from + CELLS * CELLS;
+            for (int c = from; c < to; c++) {
+                if (cells[c] >= 0) cells[c] += offset;
+            }
+            offset += slabLength[ri];
+        }
+        return new Lut(cells, candidates);
+    }
+
+    /**
+     * Smallest value over p in [lo, hi] of (p - v)^2 - (p - pivot)^2, one axis of how much
+     * farther v is than pivot; the difference is linear in p, so an end of the range attains it.
+     */
+    private static int closerSomewhere(int v, int pivot, int lo, int hi) {
+        int slope = pivot - v;
+        return slope * (2 * (slope > 0 ? lo : hi) - v - pivot);
+    }
+
+    /** True for exactly black and white, which the original black/white methods already handle. */
+    boolean isBlackWhite() {
+        return colors.length == 2
+                && ((colors[0] == 0 && colors[1] == 0xFFFFFF) || (colors[0] == 0xFFFFFF && colors[1] == 0));
+    }
+
+    @Override
+    public String toString() {
+        return "Palette" + Arrays.toString(Arrays.stream(colors).mapToObj(c -> String.format("#%06x", c)).toArray());
+    }
+}
@@ -0,0 +1,85 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Color counterparts of the black/white methods, mapping every pixel to a {@link Palette}
+ * color through its lookup table. Output is TYPE_INT_RGB holding only palette colors.
+ * Error diffusion to a palette lives in {@link ErrorDiffusion}.
+ */
+final class PaletteDither {
+
+    private PaletteDither() {
+    }
+
+    /** Plain nearest-color mapping, the palette version of a fixed threshold. */
+    static BufferedImage nearest(BufferedImage src, Palette palette) {
+        int w = src.getWidth(), h = src.getHeight();
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] out = pixels(dst);
+        palette.lut(); // build once up front rather than inside the first band
+        RowBands.run(w, h, (y0, y1) -> {
+            int[] rgb = new int[w];
+            for (int y = y0; y < y1; y++) {
+                src.getRGB(0, y, w, 1, rgb, 0, w);
+                int row = y * w;
+                for (int x = 0; x < w; x++) {
+                    int p = rgb[x];
+                    out[row + x] = palette.color(palette.nearest((p >> 16) & 0xFF, (p >> 8) & 0xFF, p & 0xFF));
+                }
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * Ordered dithering: each channel is pushed up or down by the map's threshold scaled to the
+     * typical gap between palette colors (256 / cbrt(size)) before the lookup.
+     */
+    static BufferedImage ordered(BufferedImage src, Palette palette, ThresholdMap map) {
+        int w = src.getWidth(), h = src.getHeight();
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] out = pixels(dst);
+        int[] offsets = offsets(palette, map);
+        int mw = map.width();
+        palette.lut();
+        RowBands.run(w, h, (y0, y1) -> {
+            int[] rgb = new int[w];
+            for (int y = y0; y < y1; y++) {
+                src.getRGB(0, y, w, 1, rgb, 0, w);
+                int start = map.rowOffset(y), end = start + mw, t = start;
+                int row = y * w;
+                for (int x = 0; x < w; x++) {
+                    int p = rgb[x];
+                    int d = offsets[t];
+                    if (++t == end) t = start;
+                    int r = clamp(((p >> 16) & 0xFF) - d);
+                    int g = clamp(((p >> 8) & 0xFF) - d);
+                    int b = clamp((p & 0xFF) - d);
+                    out[row + x] = palette.color(palette.nearest(r, g, b));
+                }
+            }
+        });
+        return dst;
+    }
+
+    /** The map's thresholds as signed channel offsets, laid out like {@link ThresholdMap#table()}. */
+    static int[] offsets(Palette palette, ThresholdMap map) {
+        double spread = 256.0 / Math.cbrt(palette.size());
+        int[] thresholds = map.table();
+        int[] offsets = new int[thresholds.length];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = (int) Math.round((thresholds[i] / 255.0 - 0.5) * spread);
+        }
+        return offsets;
+    }
+
+    static int clamp(int v) {
+        return v < 0 ? 0 : Math.min(v, 255);
+    }
+
+    private static int[] pixels(BufferedImage dst) {
+        return ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+    }
+}
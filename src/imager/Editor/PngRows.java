@@ -0,0 +1,228 @@
+package imager.Editor;
+
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streams the rows of a non-interlaced PNG from top to bottom, inflating and unfiltering one
+ * row at a time, so reading an image in strips decodes the file once in total. The JDK reader
+ * restarts from the first IDAT for every source region, which makes strip-by-strip decoding
+ * grow with the square of the strip count.
+ *
+ * Rows are stored as raw samples (palette indices, gray levels, 16-bit values as they are) into
+ * a raster of the type the JDK reader decodes to, so the pixels come out exactly as
+ * {@code ImageReader.read} would give them. Interlaced images are left to the JDK reader, and
+ * so are gray and truecolor images with a tRNS chunk, which the JDK reader expands to an alpha
+ * band the file's rows do not have.
+ */
+final class PngRows implements Closeable {
+
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+    private static final int IDAT = 0x49444154;
+    private static final int TRNS = 0x74524E53;
+
+    private final DataInputStream file;
+    private final Inflater inflater = new Inflater();
+    private final InputStream pixels;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int bpp;
+    private final int samplesPerRow;
+    private byte[] prev, cur;
+    private final int[] samples;
+
+    private PngRows(DataInputStream file, int firstIdat, int width, int height, int depth, int channels) {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        int bitsPerPixel = channels * depth;
+        this.bpp = Math.max(1, bitsPerPixel / 8);
+        this.samplesPerRow = width * channels;
+        int rowBytes = (int) (((long) width * bitsPerPixel + 7) / 8);
+        prev = new byte[rowBytes];
+        cur = new byte[rowBytes];
+        samples = new int[samplesPerRow];
+        pixels = new InflaterInputStream(new IdatStream(file, firstIdat), inflater, 1 << 16);
+    }
+
+    /**
+     * Opens input when it is a non-interlaced PNG whose rows hold every band of the JDK reader's
+     * image type, or returns null so the caller uses ImageIO.
+     */
+    static PngRows open(File input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(input), 1 << 16));
+        try {
+            if (in.readLong() != SIGNATURE) {
+                in.close();
+                return null;
+            }
+            int len = in.readInt();
+            if (in.readInt() != IHDR || len != 13) throw new IOException("PNG without IHDR: " + input);
+            int w = in.readInt(), h = in.readInt();
+            int depth = in.readUnsignedByte(), colorType = in.readUnsignedByte();
+            in.readUnsignedByte(); // compression
+            in.readUnsignedByte(); // filter method
+            int interlace = in.readUnsignedByte();
+            in.readInt(); // CRC
+            int channels = switch (colorType) {
+                case 0, 3 -> 1;
+                case 2 -> 3;
+                case 4 -> 2;
+                case 6 -> 4;
+                default -> throw new IOException("bad PNG color type " + colorType + ": " + input);
+            };
+            if (interlace != 0) {
+                in.close();
+                return null;
+            }
+            // everything up to the first IDAT (PLTE, tRNS, ...) is already in the JDK reader's image type
+            while (true) {
+                len = in.readInt();
+                int type = in.readInt();
+                if (type == IDAT) break;
+                if (type == TRNS && (colorType == 0 || colorType == 2)) {
+                    // one transparent color becomes a whole alpha band in the reader's image type
+                    in.close();
+                    return null;
+                }
+                in.skipNBytes(len + 4L);
+            }
+            return new PngRows(in, len, w, h, depth, channels);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /** Decodes the next rows rows into rows 0 .. rows-1 of raster. */
+    void read(WritableRaster raster, int rows) throws IOException {
+        for (int r = 0; r < rows; r++) {
+            int filter = pixels.read();
+            if (filter < 0 || pixels.readNBytes(cur, 0, cur.length) != cur.length) {
+                throw new EOFException("PNG image data ends early");
+            }
+            unfilter(filter);
+            unpack();
+            raster.setPixels(0, r, width, 1, samples);
+            byte[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    private void unfilter(int filter) throws IOException {
+        byte[] c = cur, p = prev;
+        int n = c.length;
+        switch (filter) {
+            case 0 -> {
+            }
+            case 1 -> {
+                for (int i = bpp; i < n; i++) c[i] += c[i - bpp];
+            }
+            case 2 -> {
+                for (int i = 0; i < n; i++) c[i] += p[i];
+            }
+            case 3 -> {
+                for (int i = 0; i < bpp; i++) c[i] += (byte) ((p[i] & 0xFF) >>> 1);
+                for (int i = bpp; i < n; i++) c[i] += (byte) (((c[i - bpp] & 0xFF) + (p[i] & 0xFF)) >>> 1);
+            }
+            case 4 -> {
+                for (int i = 0; i < bpp; i++) c[i] += p[i];
+                for (int i = bpp; i < n; i++) {
+                    int a = c[i - bpp] & 0xFF, b = p[i] & 0xFF, cc = p[i - bpp] & 0xFF;
+                    int pa = Math.abs(b - cc), pb = Math.abs(a - cc), pc = Math.abs(a + b - 2 * cc);
+                    c[i] += (byte) ((pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : cc);
+                }
+            }
+            default -> throw new IOException("bad PNG filter type " + filter);
+        }
+    }
+
+    private void unpack() {
+        byte[] c = cur;
+        int[] s = samples;
+        switch (depth) {
+            case 8 -> {
+                for (int i = 0; i < samplesPerRow; i++) s[i] = c[i] & 0xFF;
+            }
+            case 16 -> {
+                for (int i = 0, j = 0; i < samplesPerRow; i++, j += 2) s[i] = ((c[j] & 0xFF) << 8) | (c[j + 1] & 0xFF);
+            }
+            default -> {
+                // 1, 2 or 4 bits, one channel, most significant bits first
+                int mask = (1 << depth) - 1;
+                for (int i = 0; i < samplesPerRow; i++) {
+                    int bit = i * depth;
+                    s[i] = (c[bit >> 3] >> (8 - depth - (bit & 7))) & mask;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        file.close();
+    }
+
+    /** The data of consecutive IDAT chunks as one stream, ending at the first other chunk. */
+    private static final class IdatStream extends InputStream {
+        private final DataInputStream in;
+        private int left;
+        private boolean done;
+
+        IdatStream(DataInputStream in, int firstLength) {
+            this.in = in;
+            this.left = firstLength;
+        }
+
+        private boolean fill() throws IOException {
+            while (left == 0 && !done) {
+                in.readInt(); // CRC of the previous chunk
+                left = in.readInt();
+                if (in.readInt() != IDAT) {
+                    done = true;
+                    left = 0;
+                }
+            }
+            return left > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            left--;
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int r = in.read(b, off, Math.min(len, left));
+            if (r < 0) throw new EOFException("PNG ends inside an IDAT chunk");
+            left -= r;
+            return r;
+        }
+    }
+}
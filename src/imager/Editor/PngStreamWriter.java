@@ -0,0 +1,408 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG one row at a time for images of at most 256 colors, which is every dithered
+ * result, so the image never has to exist in memory as a whole. Black and white is stored as
+ * 1-bit grayscale, other color sets as indexed color at 1, 2, 4 or 8 bits per pixel.
+ *
+ * Rows are unfiltered (filters do not help packed low-depth pixels) and cut into blocks of
+ * {@link #BLOCK} bytes that are deflated in parallel on the {@link RowBands} pool, each primed
+ * with the last 32 KB of the block before it and ended with a sync flush, as pigz does. The
+ * blocks concatenate into one zlib stream whose checksum is kept on the writing thread. The
+ * bytes written depend only on the image and the level, not on the number of threads.
+ */
+final class PngStreamWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /** Largest IDAT chunk written. */
+    static final int CHUNK = 1 << 16;
+
+    /** Uncompressed bytes deflated as one task. */
+    static final int BLOCK = 1 << 18;
+
+    /** Deflate's window: how much of the previous block primes the next. */
+    private static final int WINDOW = 1 << 15;
+
+    /** A final, empty fixed-Huffman block, ending the deflate stream after the sync-flushed blocks. */
+    private static final byte[] FINAL_BLOCK = {0x03, 0x00};
+
+    private final DataOutputStream out;
+    private final int w;
+    private final int h;
+    private final int level;
+    private final int depth;
+    private final boolean gray;
+    private final IndexTable indices;
+    private final byte[] line;
+    private final Chunks idat = new Chunks();
+    private final Adler32 adler = new Adler32();
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int maxPending = 2 * RowBands.getParallelism();
+    private byte[] block = new byte[BLOCK];
+    private byte[] previous;
+    private int fill;
+    private int rows;
+
+    /**
+     * colors are the image's distinct 0xRRGGBB values, 1 to 256 of them; exactly black and white
+     * gives a 1-bit grayscale file. level is a {@link Deflater} level, 0-9 or -1 for the default.
+     */
+    PngStreamWriter(OutputStream os, int w, int h, int[] colors, int level) throws IOException {
+        if (colors.length < 1 || colors.length > 256) throw new IllegalArgumentException("need 1-256 colors");
+        if (level < -1 || level > 9) throw new IllegalArgumentException("compression level must be 0-9 or -1");
+        this.out = new DataOutputStream(os);
+        this.w = w;
+        this.h = h;
+        this.level = level;
+        gray = isBlackWhite(colors);
+        int[] table = gray ? new int[]{0x000000, 0xFFFFFF} : colors;
+        depth = gray || table.length <= 2 ? 1 : table.length <= 4 ? 2 : table.length <= 16 ? 4 : 8;
+        indices = new IndexTable(table);
+        line = new byte[1 + (int) (((long) w * depth + 7) >> 3)];
+
+        out.write(SIGNATURE);
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, w);
+        putInt(ihdr, 4, h);
+        ihdr[8] = (byte) depth;
+        ihdr[9] = (byte) (gray ? 0 : 3); // grayscale or indexed
+        writeChunk("IHDR", ihdr, ihdr.length);
+        if (!gray) {
+            byte[] plte = new byte[table.length * 3];
+            for (int i = 0; i < table.length; i++) {
+                plte[3 * i] = (byte) (table[i] >> 16);
+                plte[3 * i + 1] = (byte) (table[i] >> 8);
+                plte[3 * i + 2] = (byte) table[i];
+            }
+            writeChunk("PLTE", plte, plte.length);
+        }
+        // zlib header: deflate with a 32 KB window, FLEVEL matching the level
+        int flevel = (level == -1 || level == 6) ? 2 : level < 2 ? 0 : level < 6 ? 1 : 3;
+        int cmf = 0x78, flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        idat.write(new byte[]{(byte) cmf, (byte) flg}, 0, 2);
+    }
+
+    /** Writes a whole image (at most 256 colors) to file. */
+    static void write(BufferedImage img, int[] colors, File file, int level) throws IOException {
+        int w = img.getWidth(), h = img.getHeight();
+        int[] px = packedPixels(img);
+        try (PngStreamWriter png = new PngStreamWriter(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16), w, h, colors, level)) {
+            int[] row = (px == null) ? new int[w] : null;
+            for (int y = 0; y < h; y++) {
+                if (px != null) {
+                    png.writeRow(px, y * w);
+                } else {
+                    img.getRGB(0, y, w, 1, row, 0, w);
+                    png.writeRow(row, 0);
+                }
+            }
+        }
+    }
+
+    /** The image's distinct 0xRRGGBB colors, alpha ignored, or null when there are more than max. */
+    static int[] colors(BufferedImage img, int max) {
+        int w = img.getWidth(), h = img.getHeight();
+        int[] px = packedPixels(img);
+        int[] row = (px == null) ? new int[w] : null;
+        ColorSet set = new ColorSet(max);
+        boolean blackWhite = true; // until another color shows up, skip the set
+        int seen = 0; // bit 0 black, bit 1 white
+        for (int y = 0; y < h; y++) {
+            int off = 0;
+            int[] src = px;
+            if (px != null) {
+                off = y * w;
+            } else {
+                img.getRGB(0, y, w, 1, row, 0, w);
+                src = row;
+            }
+            int x = 0;
+            if (blackWhite) {
+                for (; x < w; x++) {
+                    int p = src[off + x];
+                    // (p + 1) & 0xFFFFFF is 1 for black, 0 for white and more for anything else
+                    if (((p + 1) & 0xFFFFFF) > 1) break;
+                    seen |= 1 << (p & 1);
+                }
+                if (x == w) continue;
+                blackWhite = false;
+                if ((seen & 1) != 0) set.add(0x000000);
+                if ((seen & 2) != 0) set.add(0xFFFFFF);
+            }
+            for (; x < w; x++) {
+                if (!set.add(src[off + x] & 0xFFFFFF)) return null;
+            }
+        }
+        if (blackWhite) {
+            return seen == 3 ? new int[]{0x000000, 0xFFFFFF} : new int[]{seen == 1 ? 0x000000 : 0xFFFFFF};
+        }
+        return set.toArray();
+    }
+
+    /** Appends the next row, w packed RGB pixels starting at rgb[off]; every pixel must be one of the colors. */
+    void writeRow(int[] rgb, int off) throws IOException {
+        if (rows == h) throw new IOException("all " + h + " rows already written");
+        line[0] = 0; // filter: none
+        if (gray) {
+            for (int x = 0, i = 1; x < w; i++) {
+                int b = 0, end = Math.min(w, x + 8), n = end - x;
+                for (; x < end; x++) {
+                    int v = (rgb[off + x] + 1) & 0xFFFFFF; // 1 black, 0 white
+                    if (v > 1) throw notInPalette(rgb[off + x] & 0xFFFFFF);
+                    b = (b << 1) | (v ^ 1);
+                }
+                line[i] = (byte) (b << (8 - n));
+            }
+        } else {
+            int perByte = 8 / depth;
+            for (int x = 0, i = 1; x < w; i++) {
+                int b = 0, end = Math.min(w, x + perByte), n = end - x;
+                for (; x < end; x++) {
+                    int p = rgb[off + x] & 0xFFFFFF;
+                    int k = indices.indexOf(p);
+                    if (k < 0) throw notInPalette(p);
+                    b = (b << depth) | k;
+                }
+                line[i] = (byte) (b << (depth * (perByte - n)));
+            }
+        }
+        adler.update(line);
+        for (int n = 0; n < line.length; ) {
+            int k = Math.min(line.length - n, BLOCK - fill);
+            System.arraycopy(line, n, block, fill, k);
+            fill += k;
+            n += k;
+            if (fill == BLOCK) submitBlock();
+        }
+        rows++;
+    }
+
+    /** Finishes the image data and closes the stream; fails if rows are missing. */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rows != h) throw new IOException("only " + rows + " of " + h + " rows written");
+            if (fill > 0) submitBlock();
+            while (!pending.isEmpty()) drainOne();
+            idat.write(FINAL_BLOCK, 0, FINAL_BLOCK.length);
+            int sum = (int) adler.getValue();
+            idat.write(new byte[]{(byte) (sum >>> 24), (byte) (sum >>> 16), (byte) (sum >>> 8), (byte) sum}, 0, 4);
+            idat.flush();
+            writeChunk("IEND", new byte[0], 0);
+        } finally {
+            pending.forEach(f -> f.cancel(false));
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] data = block, dict = previous;
+        int len = fill;
+        if (RowBands.getParallelism() > 1) {
+            pending.add(RowBands.pool().submit(() -> deflate(data, len, dict, level)));
+            if (pending.size() >= maxPending) drainOne();
+        } else {
+            byte[] z = deflate(data, len, dict, level);
+            idat.write(z, 0, z.length);
+        }
+        // the block is now owned by its task and primes the next one, so start a fresh array
+        previous = data;
+        block = new byte[BLOCK];
+        fill = 0;
+    }
+
+    private void drainOne() throws IOException {
+        byte[] z;
+        try {
+            z = pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("compression failed", e.getCause());
+        }
+        idat.write(z, 0, z.length);
+    }
+
+    /** Raw deflate of data[0..len), primed with the tail of dict and ending on a byte boundary. */
+    private static byte[] deflate(byte[] data, int len, byte[] dict, int level) {
+        Deflater d = new Deflater(level, true);
+        try {
+            if (dict != null) d.setDictionary(dict, dict.length - WINDOW, WINDOW);
+            d.setInput(data, 0, len);
+            ByteArrayOutputStream z = new ByteArrayOutputStream(len / 4 + 64);
+            byte[] buf = new byte[1 << 16];
+            int n;
+            do {
+                n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                z.write(buf, 0, n);
+            } while (n == buf.length);
+            return z.toByteArray();
+        } finally {
+            d.end();
+        }
+    }
+
+    private static IOException notInPalette(int color) {
+        return new IOException(String.format("color %06X is not in the PNG's palette", color));
+    }
+
+    private static boolean isBlackWhite(int[] colors) {
+        for (int c : colors) {
+            if (c != 0x000000 && c != 0xFFFFFF) return false;
+        }
+        return true;
+    }
+
+    /** Backing array of a TYPE_INT_RGB/ARGB image laid out as width * height, or null. */
+    private static int[] packedPixels(BufferedImage img) {
+        int type = img.getType();
+        if ((type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB)
+                || !(img.getRaster().getDataBuffer() instanceof DataBufferInt db)
+                || !(img.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel sm)
+                || sm.getScanlineStride() != img.getWidth() || db.getOffset() != 0
+                || img.getRaster().getSampleModelTranslateX() != 0 || img.getRaster().getSampleModelTranslateY() != 0) {
+            return null;
+        }
+        return db.getData();
+    }
+
+    private void writeChunk(String type, byte[] data, int len) throws IOException {
+        byte[] t = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(data, 0, len);
+        out.writeInt(len);
+        out.write(t);
+        out.write(data, 0, len);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] b, int i, int v) {
+        b[i] = (byte) (v >>> 24);
+        b[i + 1] = (byte) (v >>> 16);
+        b[i + 2] = (byte) (v >>> 8);
+        b[i + 3] = (byte) v;
+    }
+
+    /** Open-addressed color -> palette index map, remembering the last hit for runs. */
+    private static final class IndexTable {
+        private final int[] keys = new int[1024];
+        private final short[] values = new short[1024];
+        private int lastColor = -1;
+        private int lastIndex = -1;
+
+        IndexTable(int[] colors) {
+            Arrays.fill(keys, -1);
+            for (int i = 0; i < colors.length; i++) {
+                int s = slot(colors[i]);
+                while (keys[s] != -1 && keys[s] != colors[i]) s = (s + 1) & 1023;
+                keys[s] = colors[i];
+                values[s] = (short) i;
+            }
+        }
+
+        int indexOf(int color) {
+            if (color == lastColor) return lastIndex;
+            for (int s = slot(color); keys[s] != -1; s = (s + 1) & 1023) {
+                if (keys[s] == color) {
+                    lastColor = color;
+                    lastIndex = values[s];
+                    return lastIndex;
+                }
+            }
+            return -1;
+        }
+
+        private static int slot(int color) {
+            return (color * 0x9E3779B1) >>> 22;
+        }
+    }
+
+    /** Distinct colors, up to max (at most 256). */
+    private static final class ColorSet {
+        private final int[] keys = new int[1024];
+        private final int max;
+        private int size;
+        private int last = -1;
+
+        ColorSet(int max) {
+            this.max = max;
+            Arrays.fill(keys, -1);
+        }
+
+        /** False when the color would be one too many. */
+        boolean add(int color) {
+            if (color == last) return true;
+            int s = (color * 0x9E3779B1) >>> 22;
+            while (keys[s] != -1) {
+                if (keys[s] == color) {
+                    last = color;
+                    return true;
+                }
+                s = (s + 1) & 1023;
+            }
+            if (size == max) return false;
+            keys[s] = color;
+            size++;
+            last = color;
+            return true;
+        }
+
+        int[] toArray() {
+            int[] out = new int[size];
+            int n = 0;
+            for (int k : keys) {
+                if (k != -1) out[n++] = k;
+            }
+            Arrays.sort(out);
+            return out;
+        }
+    }
+
+    /** Collects zlib bytes into IDAT chunks of up to {@link #CHUNK} bytes. */
+    private final class Chunks {
+        private final byte[] buf = new byte[CHUNK];
+        private int n;
+
+        void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int k = Math.min(len, CHUNK - n);
+                System.arraycopy(b, off, buf, n, k);
+                n += k;
+                off += k;
+                len -= k;
+                if (n == CHUNK) flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (n == 0) return;
+            writeChunk("IDAT", buf, n);
+            n = 0;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Raw frame pipes to and from ffmpeg. The decoder runs ffmpeg with {@code -f rawvideo
+ * -pix_fmt bgr24} on stdout, which is exactly the TYPE_3BYTE_BGR layout, so frames are read
+ * straight into an image's backing array. The encoder takes rgb24 frames on stdin. No frame
+ * ever touches the disk.
+ */
+final class RawVideo {
+
+    /** Lines of ffmpeg log kept for error messages. */
+    private static final int LOG_LINES = 40;
+
+    // "  Stream #0:0: Video: rawvideo (BGR[24] / 0x18524742), bgr24(...), 640x360 [SAR 1:1 DAR 16:9], ..."
+    private static final Pattern OUTPUT_SIZE = Pattern.compile("Video: rawvideo.*?, (\\d{1,5})x(\\d{1,5})[ ,\\[]");
+
+    private RawVideo() {
+    }
+
+    /** Keeps draining a process log so it never blocks, remembering the tail for diagnostics. */
+    private static class LogDrain extends Thread {
+        private final InputStream in;
+        private final ArrayDeque<String> tail = new ArrayDeque<>();
+
+        LogDrain(InputStream in, String name) {
+            super(name);
+            this.in = in;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(in))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    synchronized (tail) {
+                        if (tail.size() == LOG_LINES) tail.removeFirst();
+                        tail.addLast(line);
+                    }
+                    onLine(line);
+                }
+            } catch (IOException e) {
+                // ignore
+            } finally {
+                onEnd();
+            }
+        }
+
+        void onLine(String line) {
+        }
+
+        void onEnd() {
+        }
+
+        String tail() {
+            synchronized (tail) {
+                return String.join("\n", tail);
+            }
+        }
+    }
+
+    static final class Decoder implements Closeable {
+        private final Process process;
+        private final InputStream frames;
+        private final LogDrain log;
+        private final int width;
+        private final int height;
+
+        /** Starts {@code ffmpeg [preInput...] -i input -vf filter -vsync 0 -an -f rawvideo -pix_fmt bgr24 pipe:1}. */
+        Decoder(List<String> preInput, String input, String filter) throws IOException {
+            List<String> cmd = new ArrayList<>();
+            cmd.add("ffmpeg"); cmd.add("-nostdin"); cmd.add("-hide_banner");
+            cmd.addAll(preInput);
+            cmd.add("-i"); cmd.add(input);
+            cmd.add("-vf"); cmd.add(filter);
+            cmd.add("-vsync"); cmd.add("0");
+            cmd.add("-an"); cmd.add("-f"); cmd.add("rawvideo"); cmd.add("-pix_fmt"); cmd.add("bgr24");
+            cmd.add("pipe:1");
+            process = new ProcessBuilder(cmd).start();
+            frames = process.getInputStream();
+
+            CompletableFuture<int[]> size = new CompletableFuture<>();
+            log = new LogDrain(process.getErrorStream(), "ffmpeg-decode-log") {
+                private boolean output;
+
+                @Override
+                void onLine(String line) {
+                    if (line.startsWith("Output #0")) output = true;
+                    if (!output || size.isDone()) return;
+                    Matcher m = OUTPUT_SIZE.matcher(line);
+                    if (m.find()) size.complete(new int[]{Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))});
+                }
+
+                @Override
+                void onEnd() {
+                    size.completeExceptionally(new IOException("ffmpeg did not report an output size"));
+                }
+            };
+            log.start();
+            try {
+                int[] wh = size.get();
+                width = wh[0];
+                height = wh[1];
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while starting ffmpeg", e);
+            } catch (ExecutionException e) {
+                process.destroy();
+                throw new IOException("ffmpeg decode failed to start:\n" + log.tail(), e.getCause());
+            }
+        }
+
+        int width() {
+            return width;
+        }
+
+        int height() {
+            return height;
+        }
+
+        BufferedImage newFrame() {
+            return new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        }
+
+        /** Reads the next frame into frame (from {@link #newFrame()}); false at end of stream. */
+        boolean read(BufferedImage frame) throws IOException {
+            byte[] data = ((DataBufferByte) frame.getRaster().getDataBuffer()).getData();
+            int n = frames.readNBytes(data, 0, data.length);
+            return n == data.length;
+        }
+
+        /** Waits for ffmpeg to exit and returns its exit code. */
+        int finish() throws InterruptedException {
+            int rc = process.waitFor();
+            try {
+                log.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return rc;
+        }
+
+        String log() {
+            return log.tail();
+        }
+
+        @Override
+        public void close() {
+            process.destroy();
+        }
+    }
+
+    static final class Encoder implements Closeable {
+        private final Process process;
+        private final OutputStream frames;
+        private final LogDrain log;
+        private final int width;
+        private final int height;
+        private final byte[] rgb;
+
+        /**
+         * Starts {@code ffmpeg -f rawvideo -pix_fmt rgb24 -s WxH -framerate fps -i pipe:0 [extraInputs...]
+         * [outputArgs...] output}.
+         */
+        Encoder(int width, int height, int fps, List<String> extraInputs, List<String> outputArgs, String output)
+                throws IOException {
+            this.width = width;
+            this.height = height;
+            this.rgb = new byte[width * height * 3];
+            List<String> cmd = new ArrayList<>();
+            cmd.add("ffmpeg"); cmd.add("-y"); cmd.add("-hide_banner");
+            cmd.add("-f"); cmd.add("rawvideo"); cmd.add("-pix_fmt"); cmd.add("rgb24");
+            cmd.add("-s"); cmd.add(width + "x" + height);
+            cmd.add("-framerate"); cmd.add(String.valueOf(fps));
+            cmd.add("-i"); cmd.add("pipe:0");
+            cmd.addAll(extraInputs);
+            cmd.addAll(outputArgs);
+            cmd.add(output);
+            process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            frames = new BufferedOutputStream(process.getOutputStream(), 1 << 16);
+            log = new LogDrain(process.getInputStream(), "ffmpeg-encode-log");
+            log.start();
+        }
+
+        /** Writes one TYPE_INT_RGB frame of the encoder's size. */
+        void write(BufferedImage frame) throws IOException {
+            if (frame.getWidth() != width || frame.getHeight() != height) {
+                throw new IllegalArgumentException("frame is " + frame.getWidth() + "x" + frame.getHeight()
+                        + ", encoder expects " + width + "x" + height);
+            }
+            int[] px = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+            for (int i = 0, j = 0; i < px.length; i++, j += 3) {
+                int p = px[i];
+                rgb[j] = (byte) (p >> 16);
+                rgb[j + 1] = (byte) (p >> 8);
+                rgb[j + 2] = (byte) p;
+            }
+            frames.write(rgb);
+        }
+
+        /** Closes stdin, waits for ffmpeg to exit and returns its exit code. */
+        int finish() throws InterruptedException {
+            try {
+                frames.close();
+            } catch (IOException e) {
+                // ffmpeg already exited; its exit code and log say why
+            }
+            int rc = process.waitFor();
+            log.join();
+            return rc;
+        }
+
+        String log() {
+            return log.tail();
+        }
+
+        @Override
+        public void close() {
+            process.destroy();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Separable image resampler: a horizontal pass then a vertical pass, each a fixed number
+ * of taps per output pixel with fixed-point weights.
+ *
+ * Per-axis weights depend only on (source length, output length, filter), so they are
+ * computed once and cached; every frame of an animation or video reuses them. Output rows
+ * are split into bands across {@link RowBands}; each band horizontally filters just the
+ * source rows its output rows need, into a small ring, so no full-size intermediate image
+ * is ever allocated. Edges repeat the border pixel. Input is read the way drawing it onto a
+ * TYPE_INT_RGB image would: alpha is composited over black and gray levels are taken as-is.
+ */
+public final class Resampler {
+
+    public enum Filter {
+        /** Area averaging: each output pixel is the mean of the source area it covers. */
+        BOX(0.5),
+        BILINEAR(1),
+        /** Catmull-Rom cubic (a = -0.5). */
+        BICUBIC(2),
+        LANCZOS3(3);
+
+        final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        double kernel(double x) {
+            x = Math.abs(x);
+            switch (this) {
+                case BILINEAR:
+                    return x < 1 ? 1 - x : 0;
+                case BICUBIC:
+                    if (x < 1) return (1.5 * x - 2.5) * x * x + 1;
+                    if (x < 2) return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+                    return 0;
+                case LANCZOS3:
+                    if (x == 0) return 1;
+                    if (x >= 3) return 0;
+                    double px = Math.PI * x;
+                    return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+                default:
+                    return x < 0.5 ? 1 : 0;
+            }
+        }
+    }
+
+    /** Weight fraction bits. */
+    private static final int WBITS = 14;
+
+    /** Fraction bits kept between the horizontal and vertical pass. */
+    private static final int MID_BITS = 6;
+
+    private static final int MAX_CACHED = 64;
+
+    /** Smallest band of a row range, see {@link #rows(BufferedImage, int, int, Filter, boolean, int, int, RowSink)}. */
+    private static final int MIN_BAND_ROWS = 32;
+
+    private record Key(int srcLen, int dstLen, Filter filter) {
+    }
+
+    /**
+     * Output pixel j reads source pixels start[j] .. start[j] + taps - 1 with weights
+     * w[j * taps ..]; windows are shifted to stay inside the source and padded with zeros.
+     */
+    private record Weights(int taps, int[] start, int[] w) {
+    }
+
+    private static final Map<Key, Weights> CACHE = new ConcurrentHashMap<>();
+
+    private Resampler() {
+    }
+
+    public static BufferedImage resize(BufferedImage src, int dstW, int dstH, Filter filter) {
+        BufferedImage dst = new BufferedImage(dstW, dstH, BufferedImage.TYPE_INT_RGB);
+        int[] out = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        rows(src, dstW, dstH, filter, false, false, (y, row) -> System.arraycopy(row, 0, out, y * dstW, dstW));
+        return dst;
+    }
+
+    /** Receives output rows; row is a reused buffer of dstW values, valid only during the call. */
+    interface RowSink {
+        void accept(int y, int[] row);
+    }
+
+    /**
+     * Produces resampled rows without building the output image: packed 0xRRGGBB, or with
+     * {@code luma} set, the {@link LumaReader#luminance} of each output pixel. Each band hands
+     * its rows to the sink in increasing y; with {@code inOrder} the whole image is one band
+     * on the calling thread, for consumers that need rows strictly in sequence.
+     */
+    static void rows(BufferedImage src, int dstW, int dstH, Filter filter, boolean luma, boolean inOrder,
+                     RowSink sink) {
+        RowBands.Body body = bands(src, dstW, dstH, filter, luma, sink);
+        if (inOrder) {
+            body.run(0, dstH);
+        } else {
+            RowBands.run(dstW, dstH, body);
+        }
+    }
+
+    /**
+     * As {@link #rows} for output rows [y0, y1) only, in parallel bands, for consumers that
+     * take the image a block of rows at a time. Bands are kept tall enough that refiltering
+     * the source rows at the top of each one stays a small part of the work.
+     */
+    static void rows(BufferedImage src, int dstW, int dstH, Filter filter, boolean luma, int y0, int y1,
+                     RowSink sink) {
+        RowBands.Body body = bands(src, dstW, dstH, filter, luma, sink);
+        RowBands.run(dstW, y1 - y0, MIN_BAND_ROWS, (a, b) -> body.run(y0 + a, y0 + b));
+    }
+
+    /** The body that resamples output rows [y0, y1) of one band. */
+    private static RowBands.Body bands(BufferedImage src, int dstW, int dstH, Filter filter, boolean luma,
+                                       RowSink sink) {
+        if (dstW < 1 || dstH < 1) throw new IllegalArgumentException("output size must be at least 1x1");
+        int srcW = src.getWidth(), srcH = src.getHeight();
+        Weights wx = weights(srcW, dstW, filter);
+        Weights wy = weights(srcH, dstH, filter);
+        RowReader reader = RowReader.of(src);
+        boolean simd = luma && Simd.enabled();
+
+        return (y0, y1) -> {
+            int[] r = new int[srcW], g = new int[srcW], b = new int[srcW];
+            // horizontally filtered source rows, planar r | g | b, indexed by source row % taps
+            int[][] ring = new int[wy.taps()][3 * dstW];
+            int[] held = new int[wy.taps()];
+            Arrays.fill(held, -1);
+            int[] row = new int[dstW];
+            for (int y = y0; y < y1; y++) {
+                int sy = wy.start()[y];
+                for (int k = 0; k < wy.taps(); k++) {
+                    int sr = sy + k, slot = sr % wy.taps();
+                    if (held[slot] != sr) {
+                        reader.read(sr, r, g, b);
+                        horizontal(wx, r, g, b, ring[slot], dstW);
+                        held[slot] = sr;
+                    }
+                }
+                vertical(wy, y, ring, row, dstW);
+                if (simd) {
+                    SimdKernels.luminance(row, 0, row, 0, dstW);
+                } else if (luma) {
+                    for (int x = 0; x < dstW; x++) {
+                        row[x] = LumaReader.luminance(row[x]);
+                    }
+                }
+                sink.accept(y, row);
+            }
+        };
+    }
+
+    private static void horizontal(Weights wx, int[] r, int[] g, int[] b, int[] dst, int dstW) {
+        int taps = wx.taps();
+        int[] start = wx.start(), w = wx.w();
+        int round = 1 << (WBITS - MID_BITS - 1);
+        for (int x = 0; x < dstW; x++) {
+            int s = start[x], p = x * taps;
+            int sr = 0, sg = 0, sb = 0;
+            for (int k = 0; k < taps; k++) {
+                int wk = w[p + k];
+                sr += wk * r[s + k];
+                sg += wk * g[s + k];
+                sb += wk * b[s + k];
+            }
+            dst[x] = (sr + round) >> (WBITS - MID_BITS);
+            dst[dstW + x] = (sg + round) >> (WBITS - MID_BITS);
+            dst[2 * dstW + x] = (sb + round) >> (WBITS - MID_BITS);
+        }
+    }
+
+    private static void vertical(Weights wy, int y, int[][] ring, int[] out, int dstW) {
+        int taps = wy.taps();
+        int s = wy.start()[y];
+        int[] w = Arrays.copyOfRange(wy.w(), y * taps, y * taps + taps);
+        int[][] rows = new int[taps][];
+        for (int k = 0; k < taps; k++) {
+            rows[k] = ring[(s + k) % taps];
+        }
+        int shift = WBITS + MID_BITS;
+        int round = 1 << (shift - 1);
+        for (int x = 0; x < dstW; x++) {
+            int sr = round, sg = round, sb = round;
+            for (int k = 0; k < taps; k++) {
+                int wk = w[k];
+                int[] h = rows[k];
+                sr += wk * h[x];
+                sg += wk * h[dstW + x];
+                sb += wk * h[2 * dstW + x];
+            }
+            out[x] = (clamp(sr >> shift) << 16) | (clamp(sg >> shift) << 8) | clamp(sb >> shift);
+        }
+    }
+
+    private static int clampIndex(int i, int len) {
+        return i < 0 ? 0 : Math.min(i, len - 1);
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : Math.min(v, 255);
+    }
+
+    private static Weights weights(int srcLen, int dstLen, Filter filter) {
+        Key key = new Key(srcLen, dstLen, filter);
+        Weights cached = CACHE.get(key);
+        if (cached != null) return cached;
+        if (CACHE.size() >= MAX_CACHED) CACHE.clear();
+        Weights built = build(srcLen, dstLen, filter);
+        CACHE.put(key, built);
+        return built;
+    }
+
+    private static Weights build(int srcLen, int dstLen, Filter filter) {
+        double scale = (double) dstLen / srcLen;
+        // when shrinking, stretch the kernel so it covers every source pixel that maps in
+        double stretch = Math.max(1.0, 1.0 / scale);
+        double[][] rows = new double[dstLen][];
+        int[] lo = new int[dstLen];
+        int taps = 1;
+        for (int j = 0; j < dstLen; j++) {
+            double a, b;
+            if (filter == Filter.BOX) {
+                // exact coverage of [a, b) in source coordinates
+                a = j / scale;
+                b = (j + 1) / scale;
+            } else {
+                double center = (j + 0.5) / scale - 0.5;
+                a = center - filter.support * stretch;
+                b = center + filter.support * stretch;
+            }
+            int first = (int) Math.floor(a), last = (int) Math.ceil(b);
+            int min = clampIndex(first, srcLen);
+            double[] acc = new double[clampIndex(last, srcLen) - min + 1];
+            int max = -1;
+            for (int i = first; i <= last; i++) {
+                double wt;
+                if (filter == Filter.BOX) {
+                    wt = Math.min(b, i + 1) - Math.max(a, i);
+                    if (wt <= 0) continue;
+                } else {
+                    wt = filter.kernel((i - (a + b) / 2) / stretch);
+                    if (wt == 0) continue;
+                }
+                int c = clampIndex(i, srcLen);
+                acc[c - min] += wt;
+                max = Math.max(max, c);
+            }
+            if (max < 0) {
+                // nothing fell in range (can only happen at extreme ratios): take the nearest pixel
+                min = max = clampIndex((int) ((j + 0.5) / scale), srcLen);
+                acc = new double[]{1};
+            } else {
+                // drop leading and trailing cells that received no weight
+                int skip = 0;
+                while (skip < max - min && acc[skip] == 0) skip++;
+                acc = Arrays.copyOfRange(acc, skip, max - min + 1);
+                min += skip;
+            }
+            lo[j] = min;
+            rows[j] = acc;
+            taps = Math.max(taps, acc.length);
+        }
+
+        int[] start = new int[dstLen];
+        int[] w = new int[dstLen * taps];
+        for (int j = 0; j < dstLen; j++) {
+            double[] row = rows[j];
+            int s = Math.min(lo[j], srcLen - taps);
+            int off = lo[j] - s;
+            start[j] = s;
+            double sum = 0;
+            for (double v : row) sum += v;
+            // quantize, then put the rounding remainder on the largest weight so rows sum to exactly 1
+            int total = 0, biggest = 0;
+            for (int k = 0; k < row.length; k++) {
+                int q = (int) Math.round(row[k] / sum * (1 << WBITS));
+                w[j * taps + off + k] = q;
+                total += q;
+                if (Math.abs(q) > Math.abs(w[j * taps + off + biggest])) biggest = k;
+            }
+            w[j * taps + off + biggest] += (1 << WBITS) - total;
+        }
+        return new Weights(taps, start, w);
+    }
+
+    /** Reads one source row into separate r, g, b arrays. Shared by all bands; holds no row state. */
+    private abstract static class RowReader {
+
+        abstract void read(int y, int[] r, int[] g, int[] b);
+
+        static RowReader of(BufferedImage src) {
+            Raster raster = src.getRaster();
+            if (src.getType() == BufferedImage.TYPE_INT_RGB
+                    && raster.getSampleModel() instanceof SinglePixelPackedSampleModel sm
+                    && raster.getDataBuffer() instanceof DataBufferInt db) {
+                int[] data = db.getData();
+                int stride = sm.getScanlineStride();
+                int base = db.getOffset() - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+                int w = src.getWidth();
+                return new RowReader() {
+                    @Override
+                    void read(int y, int[] r, int[] g, int[] b) {
+                        int p = base + y * stride;
+                        for (int x = 0; x < w; x++) {
+                            int v = data[p + x];
+                            r[x] = (v >> 16) & 0xFF;
+                            g[x] = (v >> 8) & 0xFF;
+                            b[x] = v & 0xFF;
+                        }
+                    }
+                };
+            }
+            if (src.getType() == BufferedImage.TYPE_3BYTE_BGR
+                    && raster.getSampleModel() instanceof ComponentSampleModel sm
+                    && raster.getDataBuffer() instanceof DataBufferByte db) {
+                byte[] data = db.getData();
+                int stride = sm.getScanlineStride(), ps = sm.getPixelStride();
+                int[] offs = sm.getBandOffsets();
+                int base = db.getOffset() - raster.getSampleModelTranslateY() * stride
+                        - raster.getSampleModelTranslateX() * ps;
+                int w = src.getWidth();
+                return new RowReader() {
+                    @Override
+                    void read(int y, int[] r, int[] g, int[] b) {
+                        int p = base + y * stride;
+                        for (int x = 0; x < w; x++, p += ps) {
+                            r[x] = data[p + offs[0]] & 0xFF;
+                            g[x] = data[p + offs[1]] & 0xFF;
+                            b[x] = data[p + offs[2]] & 0xFF;
+                        }
+                    }
+                };
+            }
+            if (src.getType() == BufferedImage.TYPE_BYTE_GRAY
+                    && raster.getSampleModel() instanceof ComponentSampleModel sm
+                    && raster.getDataBuffer() instanceof DataBufferByte db) {
+                byte[] data = db.getData();
+                int stride = sm.getScanlineStride(), ps = sm.getPixelStride();
+                int base = db.getOffset() - raster.getSampleModelTranslateY() * stride
+                        - raster.getSampleModelTranslateX() * ps + sm.getBandOffsets()[0];
+                int w = src.getWidth();
+                // gray -> sRGB goes through the color model (linear gray), as in LumaReader
+                int[] lut = new int[256];
+                byte[] px = new byte[1];
+                for (int v = 0; v < 256; v++) {
+                    px[0] = (byte) v;
+                    lut[v] = src.getColorModel().getRGB(px);
+                }
+                return new RowReader() {
+                    @Override
+                    void read(int y, int[] r, int[] g, int[] b) {
+                        int p = base + y * stride;
+                        for (int x = 0; x < w; x++, p += ps) {
+                            int v = lut[data[p] & 0xFF];
+                            r[x] = (v >> 16) & 0xFF;
+                            g[x] = (v >> 8) & 0xFF;
+                            b[x] = v & 0xFF;
+                        }
+                    }
+                };
+            }
+            boolean alpha = src.getColorModel().hasAlpha();
+            int w = src.getWidth();
+            return new RowReader() {
+                @Override
+                void read(int y, int[] r, int[] g, int[] b) {
+                    int[] argb = new int[w];
+                    src.getRGB(0, y, w, 1, argb, 0, w);
+                    for (int x = 0; x < w; x++) {
+                        int v = argb[x];
+                        int a = alpha ? v >>> 24 : 255;
+                        r[x] = ((v >> 16) & 0xFF) * a / 255;
+                        g[x] = ((v >> 8) & 0xFF) * a / 255;
+                        b[x] = (v & 0xFF) * a / 255;
+                    }
+                }
+            };
+        }
+    }
+}
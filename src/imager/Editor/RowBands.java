@@ -0,0 +1,94 @@
+package imager.Editor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits an image into horizontal bands of rows and runs them on a ForkJoinPool.
+ * Small images, and a parallelism of 1, run on the calling thread.
+ */
+final class RowBands {
+
+    /** Below this many pixels the fork/join overhead is not worth it. */
+    static final int MIN_PARALLEL_PIXELS = 1 << 16;
+
+    /** Smallest band handed to a single task, in pixels. */
+    private static final int MIN_BAND_PIXELS = 1 << 14;
+
+    interface Body {
+        void run(int y0, int y1);
+    }
+
+    private static volatile int parallelism = Runtime.getRuntime().availableProcessors();
+    private static ForkJoinPool pool;
+
+    private RowBands() {
+    }
+
+    static int getParallelism() {
+        return parallelism;
+    }
+
+    static synchronized void setParallelism(int n) {
+        if (n < 1) throw new IllegalArgumentException("parallelism must be >= 1");
+        if (n == parallelism) return;
+        parallelism = n;
+        // the old pool is only dropped: tasks other threads still have in it run to completion,
+        // and its workers exit once they have been idle for the pool's keep-alive time
+        pool = null;
+    }
+
+    static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    static boolean isParallel(int w, int h) {
+        return parallelism > 1 && h > 1 && (long) w * h >= MIN_PARALLEL_PIXELS;
+    }
+
+    /** Runs body over rows [0, h), split into bands when the image is large enough. */
+    static void run(int w, int h, Body body) {
+        run(w, h, 1, body);
+    }
+
+    /**
+     * As above with bands of at least minRows rows, for bodies that redo some work at the top
+     * of every band (a resampler refilters the source rows its first output row needs).
+     */
+    static void run(int w, int h, int minRows, Body body) {
+        if (!isParallel(w, h)) {
+            body.run(0, h);
+            return;
+        }
+        minRows = Math.max(minRows, MIN_BAND_PIXELS / Math.max(1, w));
+        // a few bands per worker so uneven rows still balance out
+        int rowsPerBand = Math.max(minRows, (h + parallelism * 4 - 1) / (parallelism * 4));
+        pool().invoke(new Band(body, 0, h, rowsPerBand));
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Band extends RecursiveAction {
+        private final Body body;
+        private final int y0, y1, rowsPerBand;
+
+        Band(Body body, int y0, int y1, int rowsPerBand) {
+            this.body = body;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.rowsPerBand = rowsPerBand;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 <= rowsPerBand) {
+                body.run(y0, y1);
+                return;
+            }
+            int mid = (y0 + y1) >>> 1;
+            invokeAll(new Band(body, y0, mid, rowsPerBand), new Band(body, mid, y1, rowsPerBand));
+        }
+    }
+}
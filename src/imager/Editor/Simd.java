@@ -0,0 +1,41 @@
+package imager.Editor;
+
+/**
+ * Decides whether the point-wise paths use {@link SimdKernels}. That needs the incubating
+ * jdk.incubator.vector module in the boot layer ({@code --add-modules jdk.incubator.vector});
+ * without it, or with {@code -Dimager.simd=false}, everything stays on the scalar loops.
+ *
+ * SimdKernels is only touched after the module check, so running without the module never
+ * links against the Vector API.
+ */
+final class Simd {
+
+    /** Vector lanes below which the kernels are not worth using (e.g. no SIMD at all). */
+    private static final int MIN_INT_LANES = 4;
+
+    static final boolean AVAILABLE = probe();
+
+    private static volatile boolean enabled = AVAILABLE;
+
+    private Simd() {
+    }
+
+    static boolean enabled() {
+        return enabled;
+    }
+
+    /** Turns the vector kernels on or off; on is ignored when they are not available. */
+    static void setEnabled(boolean on) {
+        enabled = on && AVAILABLE;
+    }
+
+    private static boolean probe() {
+        if ("false".equalsIgnoreCase(System.getProperty("imager.simd"))) return false;
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return false;
+        try {
+            return SimdKernels.intLanes() >= MIN_INT_LANES;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package imager.Editor;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API versions of the luminance, threshold and ordered-dither row loops. Only reached
+ * through {@link Simd}, which checks that jdk.incubator.vector is present first.
+ *
+ * Every kernel produces exactly what the scalar loop does. Luminance is computed in double
+ * lanes as {@code (int) (0.2126 * r + 0.7152 * g + 0.0722 * b)} with the multiplies and adds
+ * in the same order (no fused multiply-add), which is the value {@link LumaReader#luminance}
+ * returns; the compares are plain integer compares. Row tails shorter than a vector run the
+ * scalar code.
+ */
+final class SimdKernels {
+
+    private static final int WHITE = 0xFFFFFF;
+
+    private static final VectorSpecies<Integer> INT = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> DOUBLE = DoubleVector.SPECIES_PREFERRED;
+    // ints that widen into exactly one DOUBLE vector: same lane count, half the bits
+    private static final VectorSpecies<Integer> INT_HALF =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLE.vectorBitSize() / 2));
+
+    private static final IntVector WHITES = IntVector.broadcast(INT, WHITE);
+    private static final IntVector BLACKS = IntVector.zero(INT);
+
+    private SimdKernels() {
+    }
+
+    static int intLanes() {
+        return INT.length();
+    }
+
+    /** lum[off + i] = luminance of packed 0x??RRGGBB rgb[rgbOff + i], for i in [0, len). */
+    static void luminance(int[] rgb, int rgbOff, int[] lum, int off, int len) {
+        int step = INT_HALF.length();
+        int bound = INT_HALF.loopBound(len);
+        int i = 0;
+        for (; i < bound; i += step) {
+            IntVector p = IntVector.fromArray(INT_HALF, rgb, rgbOff + i);
+            DoubleVector r = (DoubleVector) p.lanewise(VectorOperators.LSHR, 16).and(0xFF)
+                    .convertShape(VectorOperators.I2D, DOUBLE, 0);
+            DoubleVector g = (DoubleVector) p.lanewise(VectorOperators.LSHR, 8).and(0xFF)
+                    .convertShape(VectorOperators.I2D, DOUBLE, 0);
+            DoubleVector b = (DoubleVector) p.and(0xFF)
+                    .convertShape(VectorOperators.I2D, DOUBLE, 0);
+            DoubleVector y = r.mul(0.2126).add(g.mul(0.7152)).add(b.mul(0.0722));
+            y.convertShape(VectorOperators.D2I, INT_HALF, 0).reinterpretAsInts().intoArray(lum, off + i);
+        }
+        for (; i < len; i++) {
+            lum[off + i] = LumaReader.luminance(rgb[rgbOff + i]);
+        }
+    }
+
+    /** out[outOff + x] = lum[x] >= threshold ? white : black, for x in [0, len). */
+    static void threshold(int[] lum, int threshold, int[] out, int outOff, int len) {
+        int step = INT.length();
+        int bound = INT.loopBound(len);
+        int x = 0;
+        for (; x < bound; x += step) {
+            VectorMask<Integer> white = IntVector.fromArray(INT, lum, x).compare(VectorOperators.GE, threshold);
+            BLACKS.blend(WHITES, white).intoArray(out, outOff + x);
+        }
+        for (; x < len; x++) {
+            out[outOff + x] = (lum[x] >= threshold) ? WHITE : 0;
+        }
+    }
+
+    /**
+     * out[outOff + x] = lum[x] >= thresholds[thrOff + x] ? white : black, for x in [0, len);
+     * the caller lays the map row out to the full image width.
+     */
+    static void ordered(int[] lum, int[] thresholds, int thrOff, int[] out, int outOff, int len) {
+        int step = INT.length();
+        int bound = INT.loopBound(len);
+        int x = 0;
+        for (; x < bound; x += step) {
+            IntVector t = IntVector.fromArray(INT, thresholds, thrOff + x);
+            VectorMask<Integer> white = IntVector.fromArray(INT, lum, x).compare(VectorOperators.GE, t);
+            BLACKS.blend(WHITES, white).intoArray(out, outOff + x);
+        }
+        for (; x < len; x++) {
+            out[outOff + x] = (lum[x] >= thresholds[thrOff + x]) ? WHITE : 0;
+        }
+    }
+}
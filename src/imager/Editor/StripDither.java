@@ -0,0 +1,263 @@
+package imager.Editor;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Dithers an image file to a PNG without holding either image whole. The source is read in
+ * horizontal strips, each strip is dithered into a ring of output rows and finished rows go
+ * straight to a {@link PngStreamWriter}, so memory is bounded by the strip height times the width.
+ *
+ * The point-wise methods index the threshold map and the noise by absolute row, and error
+ * diffusion is a single sink fed every row in order, so the output matches dithering the
+ * whole image at once. Non-interlaced PNGs are streamed row by row through {@link PngRows};
+ * everything else is read through {@link ImageReadParam#setSourceRegion}. Readers with random
+ * access (TIFF strips and tiles, BMP) then only decode the strip, but the JDK JPEG reader and
+ * interlaced PNGs decode from the top of the image for every region, so their cost grows with
+ * the square of the strip count; that is why strips are as tall as {@link #STRIP_BYTES} allows.
+ *
+ * The PNG is written to a temp file next to the output and renamed over it once the last row
+ * is in, so a strip that fails to decode leaves no truncated output behind.
+ */
+final class StripDither {
+
+    /** Working memory of one strip: the decoded source plus the output ring. */
+    static final long STRIP_BYTES = 64L << 20;
+
+    /** Bytes per pixel assumed for a strip: up to 8 decoded (16-bit RGBA) plus 4 of output. */
+    private static final int BYTES_PER_PIXEL = 12;
+
+    private static final int WHITE = 0xFFFFFF;
+    private static final int BLACK = 0x000000;
+
+    private StripDither() {
+    }
+
+    /**
+     * methodChoice is the menu number, as in {@link Dithering#resizeAndDither}; with a palette
+     * it is read as in {@link Dithering#ditherToPalette}. pngLevel is the deflate level and
+     * stripRows of 0 picks the height from {@link #STRIP_BYTES}.
+     */
+    static void dither(File input, File output, int methodChoice, int threshold, Palette palette,
+                       ThresholdMap map, long seed, DiffusionKernel kernel, boolean serpentine,
+                       int pngLevel, int stripRows) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(input);
+             PngRows pngRows = PngRows.open(input)) {
+            if (in == null) throw new IOException("cannot open " + input);
+            ImageReader reader = reader(in, input);
+            try {
+                int w = reader.getWidth(0), h = reader.getHeight(0);
+                // streamed strips use the image type the reader itself would decode to
+                ImageTypeSpecifier type = (pngRows != null) ? reader.getImageTypes(0).next() : null;
+                BufferedImage stripImage = null;
+                int n = stripRows > 0 ? stripRows : (int) Math.max(1, STRIP_BYTES / ((long) w * BYTES_PER_PIXEL));
+                n = Math.min(h, n);
+                boolean diffusion = methodChoice < 1 || methodChoice > 4;
+                // a diffusion sink lags its input by lag rows, and finish() adds those to the last strip
+                int lag = diffusion ? kernel.rows - 1 : 0;
+                int ringRows = n + lag;
+                int[] ring = new int[ringRows * w];
+                ErrorDiffusion.Sink sink = !diffusion ? null : (palette == null)
+                        ? ErrorDiffusion.rows(ring, w, ringRows, kernel, serpentine)
+                        : ErrorDiffusion.paletteRows(ring, w, ringRows, palette, kernel, serpentine);
+                Strip strip = new Strip(w, ring, methodChoice, threshold, palette, map, seed);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int written = 0;
+                File out = output.getAbsoluteFile();
+                File part = File.createTempFile("imager-", ".png.part", out.getParentFile());
+                try {
+                    try (PngStreamWriter png = new PngStreamWriter(
+                            new BufferedOutputStream(new FileOutputStream(part), 1 << 16), w, h,
+                            palette == null ? Palette.BLACK_WHITE.colors() : palette.colors(), pngLevel)) {
+                        for (int y0 = 0; y0 < h; y0 += n) {
+                            int rows = Math.min(n, h - y0);
+                            BufferedImage src;
+                            if (pngRows != null) {
+                                if (stripImage == null || stripImage.getHeight() != rows) {
+                                    stripImage = type.createBufferedImage(w, rows);
+                                }
+                                pngRows.read(stripImage.getRaster(), rows);
+                                src = stripImage;
+                            } else {
+                                param.setSourceRegion(new Rectangle(0, y0, w, rows));
+                                src = reader.read(0, param);
+                            }
+                            int done;
+                            if (sink != null) {
+                                feed(src, sink, palette == null, w, rows);
+                                if (y0 + rows == h) {
+                                    sink.finish();
+                                    done = h;
+                                } else {
+                                    done = Math.max(0, y0 + rows - lag);
+                                }
+                            } else {
+                                strip.run(src, y0, rows);
+                                done = y0 + rows;
+                            }
+                            for (; written < done; written++) {
+                                png.writeRow(ring, (written % ringRows) * w);
+                            }
+                        }
+                    }
+                    try {
+                        Files.move(part.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(part.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } finally {
+                    if (part.exists()) part.delete();
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /** Width and height from the file header, without decoding pixels. */
+    static Dimension size(File input) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+            if (in == null) throw new IOException("cannot open " + input);
+            ImageReader reader = reader(in, input);
+            try {
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageReader reader(ImageInputStream in, File input) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) throw new IOException("not a readable image: " + input);
+        ImageReader reader = readers.next();
+        reader.setInput(in, false, true);
+        return reader;
+    }
+
+    private static void feed(BufferedImage src, ErrorDiffusion.Sink sink, boolean luma, int w, int rows) {
+        int[] row = new int[w];
+        LumaReader reader = luma ? LumaReader.of(src) : null;
+        for (int r = 0; r < rows; r++) {
+            if (luma) {
+                reader.readRow(r, row);
+            } else {
+                src.getRGB(0, r, w, 1, row, 0, w);
+            }
+            sink.accept(row);
+        }
+    }
+
+    /** The point-wise methods over one strip, in parallel bands; row y0 + r lands in ring row (y0 + r) % ringRows. */
+    private static final class Strip {
+        private final int w;
+        private final int[] ring;
+        private final int ringRows;
+        private final int method;
+        private final int threshold;
+        private final Palette palette;
+        private final ThresholdMap map;
+        private final int[] table;
+        private final int[] offsets;
+        private final int[] tiled;
+        private final long key;
+
+        Strip(int w, int[] ring, int method, int threshold, Palette palette, ThresholdMap map, long seed) {
+            this.w = w;
+            this.ring = ring;
+            this.ringRows = ring.length / w;
+            this.method = method;
+            this.threshold = threshold;
+            this.palette = palette;
+            this.map = map;
+            table = map.table();
+            offsets = (palette != null) ? PaletteDither.offsets(palette, map) : null;
+            tiled = (palette == null && method == 3 && Simd.enabled() && (long) map.height() * w <= Dithering.MAX_TILED)
+                    ? map.tiled(w) : null;
+            // stills are frame 0; avoid-cluster jitter ignores the frame anyway
+            key = Noise.key(seed, 0);
+            if (palette != null) palette.lut();
+        }
+
+        void run(BufferedImage src, int y0, int rows) {
+            LumaReader reader = (palette == null) ? LumaReader.of(src) : null;
+            boolean simd = Simd.enabled();
+            int mw = map.width();
+            RowBands.run(w, rows, (r0, r1) -> {
+                int[] row = new int[w];
+                for (int r = r0; r < r1; r++) {
+                    int y = y0 + r;
+                    int o = (y % ringRows) * w;
+                    int start = map.rowOffset(y), end = start + mw, t = start;
+                    long counter = Noise.rowStart(key, y);
+                    if (palette != null) {
+                        src.getRGB(0, r, w, 1, row, 0, w);
+                        for (int x = 0; x < w; x++) {
+                            int p = row[x];
+                            int d = 0;
+                            if (method != 1) {
+                                d = offsets[t];
+                                if (++t == end) t = start;
+                            }
+                            int cr = PaletteDither.clamp(((p >> 16) & 0xFF) - d);
+                            int cg = PaletteDither.clamp(((p >> 8) & 0xFF) - d);
+                            int cb = PaletteDither.clamp((p & 0xFF) - d);
+                            ring[o + x] = palette.color(palette.nearest(cr, cg, cb));
+                        }
+                        continue;
+                    }
+                    reader.readRow(r, row);
+                    switch (method) {
+                        case 1 -> {
+                            if (simd) {
+                                SimdKernels.threshold(row, threshold, ring, o, w);
+                                continue;
+                            }
+                            for (int x = 0; x < w; x++) {
+                                ring[o + x] = (row[x] >= threshold) ? WHITE : BLACK;
+                            }
+                        }
+                        case 2 -> {
+                            for (int x = 0; x < w; x++, counter += Noise.GAMMA) {
+                                ring[o + x] = (row[x] >= Noise.level(counter)) ? WHITE : BLACK;
+                            }
+                        }
+                        case 3 -> {
+                            if (tiled != null) {
+                                SimdKernels.ordered(row, tiled, (y % map.height()) * w, ring, o, w);
+                                continue;
+                            }
+                            for (int x = 0; x < w; x++) {
+                                ring[o + x] = (row[x] >= table[t]) ? WHITE : BLACK;
+                                if (++t == end) t = start;
+                            }
+                        }
+                        default -> {
+                            for (int x = 0; x < w; x++, counter += Noise.GAMMA) {
+                                int th = Math.max(0, Math.min(255, table[t] + Noise.jitter(counter)));
+                                ring[o + x] = (row[x] >= th) ? WHITE : BLACK;
+                                if (++t == end) t = start;
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package imager.Editor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Dithers a sequence of same-sized frames, re-doing only the blocks whose luminance changed
+ * since the previous frame and copying the previous output everywhere else.
+ *
+ * For the point-wise methods (threshold, random, ordered, avoid-cluster) a pixel's output
+ * depends only on its luminance, position and (for random) the frame's noise, so dirty blocks
+ * are re-dithered in place. Threshold, ordered and avoid-cluster then match a full re-dither
+ * exactly; random keeps the noise of whichever frame last touched an unchanged block.
+ *
+ * Error diffusion re-diffuses each group of touching dirty blocks on its own, grown by
+ * {@link #FS_MARGIN} pixels on every side; pixels outside those boxes keep their previous
+ * values. The quantization error every pixel pushed on when it was last diffused is kept, so a
+ * box starts from the error its unchanged neighbours push into it rather than from none, and
+ * across the margin the value each pixel quantizes crossfades from the new diffusion to the
+ * one it had last time, so the box ends in exactly the state its surroundings were dithered
+ * against instead of in a seam. When every block is dirty this is a plain full-frame
+ * diffusion.
+ *
+ * Frames must be passed in order from a single thread.
+ */
+final class TemporalDither {
+
+    static final int BLOCK = 16;
+
+    /** How far past the dirty blocks error diffusion is allowed to re-diffuse, on every side. */
+    static final int FS_MARGIN = 2 * BLOCK;
+
+    record Stats(int index, int dirtyBlocks, int totalBlocks) {
+        double reusedFraction() {
+            return totalBlocks == 0 ? 0 : 1.0 - (double) dirtyBlocks / totalBlocks;
+        }
+    }
+
+    private final int methodChoice;
+    private final int threshold;
+    private final ThresholdMap map = Dithering.getOrderedMap();
+    private final long seed = Dithering.getSeed();
+    private final DiffusionKernel kernel = Dithering.getDiffusionKernel();
+    private final boolean serpentine = Dithering.isSerpentine();
+    /** Table kernels diffuse in {@link ErrorDiffusion}'s fixed point, Floyd-Steinberg in floats. */
+    private final boolean fixed = kernel != DiffusionKernel.FLOYD_STEINBERG;
+    private final int unit = fixed ? 1 << ErrorDiffusion.FRAC : 1;
+    private final float[] share = new float[kernel.dx.length];
+    private int w, h, bw, bh;
+    private byte[] prevLuma;
+    private byte[] luma;
+    private int[] prevOut;
+    private float[] error;
+    private boolean errorKnown;
+    private boolean[] dirty;
+    private Stats last;
+    private long totalDirty, totalBlocks;
+
+    TemporalDither(int methodChoice, int threshold) {
+        this.methodChoice = methodChoice;
+        this.threshold = threshold;
+    }
+
+    Stats lastStats() {
+        return last;
+    }
+
+    /** Fraction of blocks reused across every frame so far. */
+    double reusedFraction() {
+        return totalBlocks == 0 ? 0 : 1.0 - (double) totalDirty / totalBlocks;
+    }
+
+    void printLastStats() {
+        System.out.printf("Frame %d: re-dithered %d/%d blocks (%.1f%% reused)%n",
+                last.index(), last.dirtyBlocks(), last.totalBlocks(), 100 * last.reusedFraction());
+    }
+
+    void printSummary() {
+        System.out.printf("Temporal reuse: %.1f%% of blocks skipped%n", 100 * reusedFraction());
+    }
+
+    /**
+     * Dithers frame as the one before the first frame that counts, so the next call reuses its
+     * unchanged blocks; it is left out of the stats.
+     */
+    void prime(BufferedImage frame, int index) {
+        long dirtyBefore = totalDirty, blocksBefore = totalBlocks;
+        next(frame, index);
+        totalDirty = dirtyBefore;
+        totalBlocks = blocksBefore;
+    }
+
+    /** Dithers the next frame; index keys the random method's noise. */
+    BufferedImage next(BufferedImage frame, int index) {
+        if (frame.getWidth() != w || frame.getHeight() != h || prevOut == null) {
+            reset(frame.getWidth(), frame.getHeight());
+        }
+        readLuma(frame);
+        int count = markDirty();
+
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] out = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        System.arraycopy(prevOut, 0, out, 0, out.length);
+        if (count > 0) {
+            if (methodChoice == 1 || methodChoice == 2 || methodChoice == 3 || methodChoice == 4) {
+                ditherBlocks(out, index);
+            } else {
+                rediffuse(frame, out);
+            }
+        }
+
+        prevOut = out;
+        byte[] t = prevLuma;
+        prevLuma = luma;
+        luma = (t != null) ? t : new byte[w * h];
+        last = new Stats(index, count, bw * bh);
+        totalDirty += count;
+        totalBlocks += (long) bw * bh;
+        return dst;
+    }
+
+    private void reset(int width, int height) {
+        w = width;
+        h = height;
+        bw = (w + BLOCK - 1) / BLOCK;
+        bh = (h + BLOCK - 1) / BLOCK;
+        prevLuma = null;
+        luma = new byte[w * h];
+        prevOut = new int[w * h];
+        error = null;
+        errorKnown = false;
+        dirty = new boolean[bw * bh];
+    }
+
+    private void readLuma(BufferedImage frame) {
+        LumaReader reader = LumaReader.of(frame);
+        RowBands.run(w, h, (y0, y1) -> {
+            int[] row = new int[w];
+            for (int y = y0; y < y1; y++) {
+                reader.readRow(y, row);
+                int p = y * w;
+                for (int x = 0; x < w; x++) {
+                    luma[p + x] = (byte) row[x];
+                }
+            }
+        });
+    }
+
+    /** Flags blocks whose luminance differs from the previous frame; everything is dirty on the first frame. */
+    private int markDirty() {
+        int count = 0;
+        for (int by = 0; by < bh; by++) {
+            int y0 = by * BLOCK, y1 = Math.min(h, y0 + BLOCK);
+            for (int bx = 0; bx < bw; bx++) {
+                int x0 = bx * BLOCK, len = Math.min(w, x0 + BLOCK) - x0;
+                boolean changed = (prevLuma == null);
+                for (int y = y0; y < y1 && !changed; y++) {
+                    int p = y * w + x0;
+                    changed = !Arrays.equals(luma, p, p + len, prevLuma, p, p + len);
+                }
+                dirty[by * bw + bx] = changed;
+                if (changed) count++;
+            }
+        }
+        return count;
+    }
+
+    private void ditherBlocks(int[] out, int index) {
+        // random noise moves with the frame; avoid-cluster's jitter stays put
+        long key = Noise.key(seed, methodChoice == 2 ? index : 0);
+        int[] table = map.table();
+        int mw = map.width();
+        RowBands.run(w * BLOCK, bh, (by0, by1) -> {
+            for (int by = by0; by < by1; by++) {
+                int y0 = by * BLOCK, y1 = Math.min(h, y0 + BLOCK);
+                for (int bx = 0; bx < bw; bx++) {
+                    if (!dirty[by * bw + bx]) continue;
+                    int x0 = bx * BLOCK, x1 = Math.min(w, x0 + BLOCK);
+                    for (int y = y0; y < y1; y++) {
+                        int row = y * w;
+                        int start = map.rowOffset(y), end = start + mw, i = start + x0 % mw;
+                        long counter = Noise.rowStart(key, y) + x0 * Noise.GAMMA;
+                        for (int x = x0; x < x1; x++, counter += Noise.GAMMA) {
+                            int lum = luma[row + x] & 0xFF;
+                            int t;
+                            switch (methodChoice) {
+                                case 1 -> t = threshold;
+                                case 2 -> t = Noise.level(counter);
+                                case 3 -> t = table[i];
+                                default -> t = Math.max(0, Math.min(255, table[i] + Noise.jitter(counter)));
+                            }
+                            out[row + x] = (lum >= t) ? 0xFFFFFF : 0x000000;
+                            if (++i == end) i = start;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /** Re-diffuses every group of dirty blocks, top to bottom so error flows down as in a full pass. */
+    private void rediffuse(BufferedImage frame, int[] out) {
+        List<int[]> groups = dirtyGroups();
+        int[] first = groups.get(0);
+        if (groups.size() == 1 && first[0] == 0 && first[1] == 0 && first[2] == bw && first[3] == bh) {
+            // nothing to seed or blend: take the plain (wavefront-parallel where it can be) pass
+            // and only work the error out again if a later frame re-diffuses part of the image
+            BufferedImage full = Dithering.errorDiffusion(frame, kernel, serpentine);
+            System.arraycopy(((DataBufferInt) full.getRaster().getDataBuffer()).getData(), 0, out, 0, out.length);
+            errorKnown = false;
+            return;
+        }
+        if (error == null) error = new float[w * h];
+        if (!errorKnown) {
+            // no block changed since that full pass, so the previous luminance is what it diffused
+            rediffuse(prevLuma, new int[w * h], 0, 0, w, h);
+            errorKnown = true;
+        }
+        for (int[] g : groups) {
+            rediffuse(luma, out, g[0] * BLOCK, g[1] * BLOCK, Math.min(w, g[2] * BLOCK), Math.min(h, g[3] * BLOCK));
+        }
+    }
+
+    /**
+     * Dirty blocks grouped by 8-connectivity, as boxes {bx0, by0, bx1, by1} in blocks in scan
+     * order of their top-left corner. Groups that would overlap once grown by the margin are
+     * merged, so no pixel is re-diffused twice.
+     */
+    private List<int[]> dirtyGroups() {
+        List<int[]> groups = new ArrayList<>();
+        boolean[] seen = new boolean[bw * bh];
+        int[] stack = new int[bw * bh];
+        for (int start = 0; start < bw * bh; start++) {
+            if (!dirty[start] || seen[start]) continue;
+            int[] box = {bw, bh, 0, 0};
+            int top = 0;
+            stack[top++] = start;
+            seen[start] = true;
+            while (top > 0) {
+                int b = stack[--top], bx = b % bw, by = b / bw;
+                box[0] = Math.min(box[0], bx);
+                box[1] = Math.min(box[1], by);
+                box[2] = Math.max(box[2], bx + 1);
+                box[3] = Math.max(box[3], by + 1);
+                for (int ny = Math.max(0, by - 1); ny <= Math.min(bh - 1, by + 1); ny++) {
+                    for (int nx = Math.max(0, bx - 1); nx <= Math.min(bw - 1, bx + 1); nx++) {
+                        int n = ny * bw + nx;
+                        if (dirty[n] && !seen[n]) {
+                            seen[n] = true;
+                            stack[top++] = n;
+                        }
+                    }
+                }
+            }
+            groups.add(box);
+        }
+        // grown boxes overlap when the groups are less than two margins apart
+        int apart = 2 * FS_MARGIN / BLOCK;
+        for (boolean merged = true; merged; ) {
+            merged = false;
+            for (int i = 0; i < groups.size(); i++) {
+                int[] a = groups.get(i);
+                for (int j = groups.size() - 1; j > i; j--) {
+                    int[] b = groups.get(j);
+                    if (a[0] < b[2] + apart && b[0] < a[2] + apart && a[1] < b[3] + apart && b[1] < a[3] + apart) {
+                        a[0] = Math.min(a[0], b[0]);
+                        a[1] = Math.min(a[1], b[1]);
+                        a[2] = Math.max(a[2], b[2]);
+                        a[3] = Math.max(a[3], b[3]);
+                        groups.remove(j);
+                        merged = true;
+                    }
+                }
+            }
+        }
+        groups.sort(Comparator.<int[]>comparingInt(g -> g[1]).thenComparingInt(g -> g[0]));
+        return groups;
+    }
+
+    /**
+     * Re-diffuses the core [cx0, cx1) x [cy0, cy1) and up to {@link #FS_MARGIN} pixels around it,
+     * with the same arithmetic as the full pass (see {@link #shares}). A margin pixel d pixels
+     * from the core quantizes the new value moved d / FS_MARGIN of the way to its value in the
+     * last diffusion (the kept error plus the level it was set to), so the outermost ring
+     * reproduces the previous output and error exactly.
+     */
+    private void rediffuse(byte[] plane, int[] out, int cx0, int cy0, int cx1, int cy1) {
+        int x0 = Math.max(0, cx0 - FS_MARGIN), x1 = Math.min(w, cx1 + FS_MARGIN);
+        int y0 = Math.max(0, cy0 - FS_MARGIN), y1 = Math.min(h, cy1 + FS_MARGIN);
+        // pixel (x, y) lives at (y - y0) * stride + pad + x - x0; taps leaving the box land in
+        // padding or in the spare rows below and are dropped
+        int pad = Math.max(1, kernel.reach);
+        int stride = x1 - x0 + 2 * pad;
+        float[] acc = new float[(y1 - y0 + kernel.rows - 1) * stride];
+        for (int y = y0; y < y1; y++) {
+            int row = (y - y0) * stride + pad - x0;
+            for (int x = x0; x < x1; x++) {
+                acc[row + x] = (plane[y * w + x] & 0xFF) * unit;
+            }
+        }
+        seed(acc, stride, pad, x0, y0, x1, y1);
+
+        int n = kernel.dx.length;
+        int mid = 128 * unit, full = 255 * unit;
+        int[] forward = new int[n], backward = new int[n];
+        for (int k = 0; k < n; k++) {
+            forward[k] = kernel.dy[k] * stride + kernel.dx[k];
+            backward[k] = kernel.dy[k] * stride - kernel.dx[k];
+        }
+        for (int y = y0; y < y1; y++) {
+            boolean reverse = serpentine && (y & 1) == 1;
+            int[] off = reverse ? backward : forward;
+            int row = (y - y0) * stride + pad - x0;
+            int dy = Math.max(0, Math.max(cy0 - y, y - cy1 + 1));
+            int step = reverse ? -1 : 1;
+            for (int k = x0, x = reverse ? x1 - 1 : x0; k < x1; k++, x += step) {
+                int i = row + x, p = y * w + x;
+                float old = acc[i];
+                int d = Math.max(dy, Math.max(cx0 - x, x - cx1 + 1));
+                if (d > 0) {
+                    float before = error[p] + (out[p] != 0 ? full : 0);
+                    old = fixed ? (int) old + ((int) before - (int) old) * d / FS_MARGIN
+                            : old + (before - old) * d / FS_MARGIN;
+                }
+                boolean on = old >= mid;
+                float err = on ? old - full : old;
+                out[p] = on ? 0xFFFFFF : 0x000000;
+                error[p] = err;
+                shares(err);
+                for (int t = 0; t < n; t++) {
+                    acc[i + off[t]] += share[t];
+                }
+            }
+        }
+    }
+
+    /** Adds the error the pixels around the box pushed into it when they were last diffused. */
+    private void seed(float[] acc, int stride, int pad, int x0, int y0, int x1, int y1) {
+        int n = kernel.dx.length;
+        int sx0 = Math.max(0, x0 - kernel.reach), sx1 = Math.min(w, x1 + kernel.reach);
+        for (int sy = Math.max(0, y0 - kernel.rows + 1); sy < y1; sy++) {
+            boolean reverse = serpentine && (sy & 1) == 1;
+            for (int sx = sx0; sx < sx1; sx++) {
+                if (sy >= y0 && sx >= x0 && sx < x1) continue;
+                float err = error[sy * w + sx];
+                if (err == 0) continue;
+                shares(err);
+                for (int t = 0; t < n; t++) {
+                    int tx = sx + (reverse ? -kernel.dx[t] : kernel.dx[t]), ty = sy + kernel.dy[t];
+                    if (tx >= x0 && tx < x1 && ty >= y0 && ty < y1) acc[(ty - y0) * stride + pad + tx - x0] += share[t];
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits err over the kernel's taps into share: err * weight / divisor in floats for
+     * Floyd-Steinberg, as {@link FloydSteinberg} does, or rounded down in fixed point with the
+     * last tap taking the remainder when the kernel passes on the whole error, as
+     * {@link ErrorDiffusion} does.
+     */
+    private void shares(float err) {
+        int n = share.length, last = n - 1;
+        if (!fixed) {
+            for (int t = 0; t < n; t++) {
+                share[t] = err * kernel.weight[t] / kernel.divisor;
+            }
+            return;
+        }
+        int e = (int) err, rest = e;
+        for (int t = 0; t < last; t++) {
+            int s = (e * kernel.multiplier[t]) >> DiffusionKernel.SHIFT;
+            share[t] = s;
+            rest -= s;
+        }
+        share[last] = kernel.wholeError ? rest : (e * kernel.multiplier[last]) >> DiffusionKernel.SHIFT;
+    }
+}
@@ -0,0 +1,305 @@
+package imager.Editor;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A tiled threshold map for ordered dithering: a pixel is white when its luminance is at
+ * least the map's threshold at (x mod width, y mod height).
+ *
+ * Thresholds are 0-255 ints in one flat row-major table, worked out once when the map is
+ * built. Callers look up a row's offset once per image row and walk it with a wrapping
+ * index, so the per-pixel work is a load and a compare with no division or modulo.
+ */
+public final class ThresholdMap {
+
+    private final String name;
+    private final int width;
+    private final int height;
+    private final int[] table;
+
+    private static final Map<String, ThresholdMap> BUILT_IN = new ConcurrentHashMap<>();
+
+    private ThresholdMap(String name, int width, int height, int[] table) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.table = table;
+    }
+
+    /**
+     * Map from ranks 0 .. count-1 (each used once), spread evenly over 0-255 the same way the
+     * original 4x4 matrix was: {@code (int) ((rank + 0.5) * (255.0 / count))}.
+     */
+    private static ThresholdMap fromRanks(String name, int width, int height, int[] ranks, int count) {
+        int[] t = new int[ranks.length];
+        for (int i = 0; i < ranks.length; i++) {
+            t[i] = (int) ((ranks[i] + 0.5) * (255.0 / count));
+        }
+        return new ThresholdMap(name, width, height, t);
+    }
+
+    /** Recursive Bayer matrix of size n x n, n one of 2, 4, 8, 16. */
+    public static ThresholdMap bayer(int n) {
+        if (n != 2 && n != 4 && n != 8 && n != 16) {
+            throw new IllegalArgumentException("Bayer size must be 2, 4, 8 or 16, got " + n);
+        }
+        return BUILT_IN.computeIfAbsent("bayer" + n, key -> {
+            int[] m = {0};
+            for (int size = 1; size < n; size *= 2) {
+                // M(2s) = [4M, 4M+2; 4M+3, 4M+1]
+                int next = size * 2;
+                int[] grown = new int[next * next];
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        int v = 4 * m[y * size + x];
+                        grown[y * next + x] = v;
+                        grown[y * next + x + size] = v + 2;
+                        grown[(y + size) * next + x] = v + 3;
+                        grown[(y + size) * next + x + size] = v + 1;
+                    }
+                }
+                m = grown;
+            }
+            return fromRanks(key, n, n, m, n * n);
+        });
+    }
+
+    /**
+     * Blue-noise map of size x size (16, 32 or 64), generated with Ulichney's void-and-cluster
+     * method from a fixed seed, so it is the same texture on every run. Built on first use.
+     */
+    public static ThresholdMap blueNoise(int size) {
+        if (size != 16 && size != 32 && size != 64) {
+            throw new IllegalArgumentException("blue-noise size must be 16, 32 or 64, got " + size);
+        }
+        return BUILT_IN.computeIfAbsent("blue" + size, key -> fromRanks(key, size, size, voidAndCluster(size), size * size));
+    }
+
+    /**
+     * Loads a map from a file. Images (PNG, BMP, ...) are used as thresholds directly: gray
+     * images by their raw sample values scaled to 0-255, color and indexed images by the
+     * luminance of their colors. Text files hold one row per line of whitespace-separated integer ranks
+     * (any range starting at 0, such as a Bayer matrix); lines starting with '#' are skipped.
+     */
+    public static ThresholdMap load(String path) throws IOException {
+        File f = new File(path);
+        String fileName = f.getName();
+        int dot = fileName.lastIndexOf('.');
+        String name = (dot > 0) ? fileName.substring(0, dot) : fileName;
+        BufferedImage img = ImageIO.read(f);
+        if (img != null) {
+            int w = img.getWidth(), h = img.getHeight();
+            int[] t = new int[w * h];
+            ColorModel cm = img.getColorModel();
+            if (cm.getColorSpace().getType() == ColorSpace.TYPE_GRAY && !(cm instanceof IndexColorModel)) {
+                // raw gray samples: going through the color model would treat them as linear and
+                // convert them to sRGB, brightening every level
+                Raster raster = img.getRaster();
+                int max = (1 << raster.getSampleModel().getSampleSize(0)) - 1;
+                raster.getSamples(0, 0, w, h, 0, t);
+                if (max != 255) {
+                    for (int i = 0; i < t.length; i++) {
+                        t[i] = (t[i] * 255 + max / 2) / max;
+                    }
+                }
+            } else {
+                LumaReader reader = LumaReader.of(img);
+                for (int y = 0; y < h; y++) {
+                    reader.read(0, y, w, t, y * w);
+                }
+            }
+            return new ThresholdMap(name, w, h, t);
+        }
+
+        List<int[]> rows = new ArrayList<>();
+        for (String line : Files.readAllLines(Path.of(path))) {
+            String s = line.trim();
+            if (s.isEmpty() || s.startsWith("#")) continue;
+            String[] parts = s.split("[\\s,]+");
+            int[] row = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                try {
+                    row[i] = Integer.parseInt(parts[i]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad threshold map entry in " + path + ": " + parts[i]);
+                }
+                if (row[i] < 0) throw new IOException("Negative threshold map entry in " + path);
+            }
+            if (!rows.isEmpty() && row.length != rows.get(0).length) {
+                throw new IOException("Rows of " + path + " differ in length");
+            }
+            rows.add(row);
+        }
+        if (rows.isEmpty()) throw new IOException("No threshold map in " + path);
+        int w = rows.get(0).length, h = rows.size();
+        int[] ranks = new int[w * h];
+        int max = 0;
+        for (int y = 0; y < h; y++) {
+            System.arraycopy(rows.get(y), 0, ranks, y * w, w);
+        }
+        for (int r : ranks) max = Math.max(max, r);
+        return fromRanks(name, w, h, ranks, max + 1);
+    }
+
+    /**
+     * "bayer2" .. "bayer16", "blue16" / "blue32" / "blue64", or else a file for {@link #load}.
+     */
+    public static ThresholdMap parse(String spec) throws IOException {
+        String s = spec.trim().toLowerCase(Locale.ROOT);
+        try {
+            if (s.startsWith("bayer")) return bayer(Integer.parseInt(s.substring(5)));
+            if (s.startsWith("blue")) return blueNoise(Integer.parseInt(s.substring(4)));
+        } catch (NumberFormatException e) {
+            // not a built-in name; try it as a file
+        }
+        return load(spec);
+    }
+
+    /** "bayer4", "blue64", or the file name without extension for loaded maps. */
+    public String name() {
+        return name;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /** Threshold at (x, y), wrapping on both axes; for occasional lookups, not inner loops. */
+    public int threshold(int x, int y) {
+        return table[(y % height) * width + (x % width)];
+    }
+
+    /** The flat row-major table; read only. */
+    int[] table() {
+        return table;
+    }
+
+    /** Offset of the row used by image row y. */
+    int rowOffset(int y) {
+        return (y % height) * width;
+    }
+
+    /** Each map row repeated out to width w, height rows of w ints; for whole-row vector compares. */
+    int[] tiled(int w) {
+        int[] t = new int[height * w];
+        for (int y = 0; y < height; y++) {
+            int row = y * w, n = Math.min(width, w);
+            System.arraycopy(table, y * width, t, row, n);
+            // keep doubling the filled prefix until the row is full
+            while (n < w) {
+                int c = Math.min(n, w - n);
+                System.arraycopy(t, row, t, row + n, c);
+                n += c;
+            }
+        }
+        return t;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + width + "x" + height + ")";
+    }
+
+    /**
+     * Ranks for a size x size blue-noise texture. A sparse random pattern is first relaxed so
+     * no point sits in a tight cluster; ranks are then handed out by removing points from the
+     * tightest cluster (ranks below the initial count) and by filling the largest void (the
+     * rest). "Tight" and "void" are measured with a toroidal Gaussian (sigma 1.5).
+     */
+    private static int[] voidAndCluster(int size) {
+        int n = size * size;
+        double[] kernel = new double[n];
+        double sigma2 = 2 * 1.5 * 1.5;
+        for (int dy = 0; dy < size; dy++) {
+            for (int dx = 0; dx < size; dx++) {
+                int wx = Math.min(dx, size - dx), wy = Math.min(dy, size - dy);
+                kernel[dy * size + dx] = Math.exp(-(wx * wx + wy * wy) / sigma2);
+            }
+        }
+
+        boolean[] on = new boolean[n];
+        double[] energy = new double[n];
+        Random rnd = new Random(0xB1E);
+        int ones = n / 10;
+        for (int placed = 0; placed < ones; ) {
+            int p = rnd.nextInt(n);
+            if (!on[p]) {
+                on[p] = true;
+                splat(energy, kernel, size, p, 1);
+                placed++;
+            }
+        }
+        // relax: move the tightest point to the largest void until that stops changing anything
+        for (int guard = 0; guard < n; guard++) {
+            int cluster = extreme(energy, on, true, true);
+            on[cluster] = false;
+            splat(energy, kernel, size, cluster, -1);
+            int hole = extreme(energy, on, false, false);
+            on[hole] = true;
+            splat(energy, kernel, size, hole, 1);
+            if (hole == cluster) break;
+        }
+
+        int[] rank = new int[n];
+        boolean[] work = on.clone();
+        double[] e = energy.clone();
+        for (int r = ones - 1; r >= 0; r--) {
+            int p = extreme(e, work, true, true);
+            work[p] = false;
+            splat(e, kernel, size, p, -1);
+            rank[p] = r;
+        }
+        for (int r = ones; r < n; r++) {
+            int p = extreme(energy, on, false, false);
+            on[p] = true;
+            splat(energy, kernel, size, p, 1);
+            rank[p] = r;
+        }
+        return rank;
+    }
+
+    /** Adds sign * kernel centred on p to the toroidal energy field. */
+    private static void splat(double[] energy, double[] kernel, int size, int p, int sign) {
+        int px = p % size, py = p / size;
+        for (int y = 0; y < size; y++) {
+            int dy = y - py;
+            if (dy < 0) dy += size;
+            int krow = dy * size, erow = y * size;
+            for (int x = 0; x < size; x++) {
+                int dx = x - px;
+                if (dx < 0) dx += size;
+                energy[erow + x] += sign * kernel[krow + dx];
+            }
+        }
+    }
+
+    /** Highest-energy pixel with on == state when max, else lowest-energy; first wins ties. */
+    private static int extreme(double[] energy, boolean[] on, boolean state, boolean max) {
+        int best = -1;
+        for (int i = 0; i < energy.length; i++) {
+            if (on[i] != state) continue;
+            if (best < 0 || (max ? energy[i] > energy[best] : energy[i] < energy[best])) best = i;
+        }
+        return best;
+    }
+}
@@ -1,8 +1,12 @@
 package imager;
 
+import imager.Editor.DiffusionKernel;
 import imager.Editor.Dithering;
 import imager.Editor.FFmpegConverter;
+import imager.Editor.Palette;
+import imager.Editor.ThresholdMap;
 
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.File;
@@ -11,6 +15,10 @@ import java.util.Scanner;
 public class Imager {
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            // any argument selects the non-interactive batch mode; see BatchCli for the flags
+            System.exit(BatchCli.run(args, System.out, System.err));
+        }
         Scanner in = new Scanner(System.in);
         System.out.println("Simple Imager Dithering Menu");
         System.out.println("1) Threshold");
@@ -39,6 +47,42 @@ public class Imager {
                 }
             }
             if (scale <= 0) scale = 1.0;
+
+            System.out.print("Palette file for color output (hex or GIMP .gpl, blank for black/white): ");
+            String paletteInput = in.nextLine().trim();
+            Palette palette = null;
+            if (!paletteInput.isEmpty()) {
+                palette = Palette.load(paletteInput);
+                Dithering.setPalette(palette);
+                System.out.println("Dithering to " + palette.size() + " colors.");
+            }
+            boolean ordered = choice == 3 || choice == 4 || (palette != null && choice == 2);
+            String variantTag = "";
+            if (ordered) {
+                System.out.print("Threshold map (bayer2/4/8/16, blue16/32/64 or a map file, default bayer4): ");
+                String mapInput = in.nextLine().trim();
+                if (!mapInput.isEmpty()) {
+                    ThresholdMap map = ThresholdMap.parse(mapInput);
+                    Dithering.setOrderedMap(map);
+                    if (!map.name().equals("bayer4")) variantTag = "_" + map.name();
+                }
+            }
+            String diffusionName = "floydSteinberg";
+            if (choice == 5) {
+                System.out.print("Error diffusion kernel (fs, atkinson, jarvis, stucki, sierra, sierra-lite; default fs): ");
+                String kernelInput = in.nextLine().trim();
+                if (!kernelInput.isEmpty()) {
+                    DiffusionKernel kernel = DiffusionKernel.parse(kernelInput);
+                    Dithering.setDiffusionKernel(kernel);
+                    if (kernel != DiffusionKernel.FLOYD_STEINBERG) diffusionName = kernel.label();
+                }
+                System.out.print("Serpentine scan? (y/n, default n): ");
+                String serp = in.nextLine().trim().toLowerCase();
+                if (serp.equals("y") || serp.equals("yes")) {
+                    Dithering.setSerpentine(true);
+                    variantTag = "_serpentine";
+                }
+            }
             String lower = path.toLowerCase();
             boolean isGif = lower.endsWith(".gif");
             boolean isVideo = lower.endsWith(".mp4") || lower.endsWith(".mov") || lower.endsWith(".webm") || lower.endsWith(".mkv") || lower.endsWith(".avi");
@@ -61,9 +105,10 @@ public class Imager {
                     case 2: outTag = "randomAnim"; break;
                     case 3: outTag = "orderedBayerAnim"; break;
                     case 4: outTag = "orderedAvoidClusterAnim"; break;
-                    case 5: outTag = "floydSteinbergAnim"; break;
+                    case 5: outTag = diffusionName + "Anim"; break;
                     default: outTag = "anim"; break;
                 }
+                outTag = outTag + variantTag;
                 if (scale != 1.0) outTag = outTag + "_resized_" + ((int) Math.round(scale * 100)) + "pct";
 
                 // For threshold method, animatedDither currently uses a fixed threshold pattern.
@@ -118,48 +163,59 @@ public class Imager {
                 return;
             }
 
-            BufferedImage src = Dithering.loadImage(path);
+            if (choice < 1 || choice > 5) {
+                System.out.println("Invalid choice");
+                System.exit(1);
+            }
+            int thr = 128;
+            if (palette == null && choice == 1) {
+                System.out.print("Enter threshold 0-255 (default 128): ");
+                String t = in.nextLine().trim();
+                if (!t.isEmpty()) {
+                    try { thr = Integer.parseInt(t); } catch (NumberFormatException ex) { thr = 128; }
+                }
+            }
+            if (palette != null) {
+                methodName = (choice == 1 ? "nearest" : choice <= 4 ? "orderedBayer" : diffusionName)
+                        + palette.size() + "colors";
+            } else {
+                switch (choice) {
+                    case 1: methodName = "threshold" + thr; break;
+                    case 2: methodName = "random"; break;
+                    case 3: methodName = "orderedBayer"; break;
+                    case 4: methodName = "orderedAvoidCluster"; break;
+                    default: methodName = diffusionName; break;
+                }
+            }
+            methodName = methodName + variantTag;
             if (scale != 1.0) {
-                src = Dithering.resize(src, scale);
+                methodName = methodName + "_resized_" + ((int) Math.round(scale * 100)) + "pct";
             }
-            switch (choice) {
-                case 1:
-                    System.out.print("Enter threshold 0-255 (default 128): ");
-                    String t = in.nextLine().trim();
-                    int thr = 128;
-                    if (!t.isEmpty()) {
-                        try { thr = Integer.parseInt(t); } catch (NumberFormatException ex) { thr = 128; }
-                    }
-                    out = Dithering.threshold(src, thr);
-                    methodName = "threshold" + thr;
-                    break;
-                case 2:
-                    out = Dithering.randomDither(src);
-                    methodName = "random";
-                    break;
-                case 3:
-                    out = Dithering.orderedBayer(src);
-                    methodName = "orderedBayer";
-                    break;
-                case 4:
-                    out = Dithering.orderedAvoidCluster(src);
-                    methodName = "orderedAvoidCluster";
-                    break;
-                case 5:
-                    out = Dithering.floydSteinberg(src);
-                    methodName = "floydSteinberg";
-                    break;
-                default:
-                    System.out.println("Invalid choice");
-                    System.exit(1);
+
+            // Too big to decode whole: read, dither and write it strip by strip instead
+            File inFile = new File(path);
+            Dimension size = Dithering.imageSize(inFile);
+            if (scale == 1.0 && !Dithering.fitsInHeap(size.width, size.height, 1)) {
+                System.out.println("Image is " + size.width + "x" + size.height + ", too large for the heap; dithering in strips.");
+                File outFile = Dithering.outputFile(path, methodName);
+                Dithering.ditherInStrips(inFile, outFile, choice, thr);
+                System.out.println("Saved: " + outFile.getAbsolutePath());
+                in.close();
+                return;
             }
 
-            if (out != null) {
+            // when shrinking, the reader skips rows and columns and the resampler does the rest
+            Dimension target = Dithering.scaledSize(size.width, size.height, scale);
+            BufferedImage src = Dithering.loadImage(path, scale);
+            if (palette != null) {
                 if (scale != 1.0) {
-                    methodName = methodName + "_resized_" + ((int) Math.round(scale * 100)) + "pct";
+                    src = Dithering.resize(src, target.width, target.height);
                 }
-                Dithering.saveImage(out, path, methodName);
+                out = Dithering.ditherToPalette(src, choice, palette);
+            } else {
+                out = Dithering.resizeAndDither(src, target.width, target.height, choice, thr);
             }
+            Dithering.saveImage(out, path, methodName);
 
         } catch (IOException e) {
             System.err.println("I/O error: " + e.getMessage());